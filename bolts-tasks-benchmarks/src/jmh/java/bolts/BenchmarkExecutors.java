@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The {@link Executor}s continuations are benchmarked with.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkExecutors {
+
+  @Param({"immediate", "background", "single"})
+  public String executor;
+
+  private ExecutorService single;
+  private Executor current;
+
+  @Setup
+  public void setUp() {
+    switch (executor) {
+      case "immediate":
+        current = BoltsExecutors.immediate();
+        break;
+      case "background":
+        current = BoltsExecutors.background();
+        break;
+      case "single":
+        single = Executors.newSingleThreadExecutor();
+        current = single;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown executor " + executor);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (single != null) {
+      single.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the {@link Executor} selected by the {@code executor} parameter.
+   */
+  public Executor get() {
+    return current;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures registering, unregistering and running cancellation callbacks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class CancellationBenchmark {
+
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  @Param({"1", "100", "10000"})
+  public int registrationCount;
+
+  @Benchmark
+  public boolean registerAndCancel() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+    for (int i = 0; i < registrationCount; i++) {
+      token.register(NOOP);
+    }
+    cts.cancel();
+    return token.isCancellationRequested();
+  }
+
+  @Benchmark
+  public CancellationTokenSource registerAndUnregister() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+    List<CancellationTokenRegistration> registrations = new ArrayList<>(registrationCount);
+    for (int i = 0; i < registrationCount; i++) {
+      registrations.add(token.register(NOOP));
+    }
+    for (CancellationTokenRegistration registration : registrations) {
+      registration.close();
+    }
+    return cts;
+  }
+
+  @Benchmark
+  public CancellationTokenSource registerAndClose() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+    for (int i = 0; i < registrationCount; i++) {
+      token.register(NOOP);
+    }
+    cts.close();
+    return cts;
+  }
+
+  @Benchmark
+  public boolean isCancellationRequested(TokenState state) {
+    boolean cancelled = false;
+    for (int i = 0; i < registrationCount; i++) {
+      cancelled |= state.token.isCancellationRequested();
+    }
+    return cancelled;
+  }
+
+  @State(Scope.Benchmark)
+  public static class TokenState {
+    final CancellationToken token = new CancellationTokenSource().getToken();
+  }
+}
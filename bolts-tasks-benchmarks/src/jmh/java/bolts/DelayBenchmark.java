@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures scheduling timeouts, most of which are cancelled before they fire.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DelayBenchmark {
+
+  @Param({"1", "100", "10000"})
+  public int delayCount;
+
+  @Benchmark
+  public CancellationTokenSource delayAndCancel() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+    for (int i = 0; i < delayCount; i++) {
+      Task.delay(60000, token);
+    }
+    cts.cancel();
+    return cts;
+  }
+
+  @Benchmark
+  public CancellationTokenSource cancelAfterAndCancel() {
+    CancellationTokenSource cts = null;
+    for (int i = 0; i < delayCount; i++) {
+      cts = new CancellationTokenSource();
+      cts.cancelAfter(60000);
+      cts.cancel();
+    }
+    return cts;
+  }
+
+  @Benchmark
+  public Task<Void> delayAndWait() throws InterruptedException {
+    Task<Void> task = Task.delay(1);
+    task.waitForCompletion();
+    return task;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of creating tasks and of running chains of continuations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TaskBenchmark {
+
+  private static final Continuation<Integer, Integer> INCREMENT =
+      new Continuation<Integer, Integer>() {
+        @Override
+        public Integer then(Task<Integer> task) {
+          return task.getResult() + 1;
+        }
+      };
+
+  @Param({"1", "10", "100"})
+  public int chainLength;
+
+  @Benchmark
+  public Task<Integer> forResult() {
+    return Task.forResult(chainLength);
+  }
+
+  @Benchmark
+  public Task<Integer> forError() {
+    return Task.forError(new RuntimeException());
+  }
+
+  @Benchmark
+  public Integer continueWith(BenchmarkExecutors executors) throws InterruptedException {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < chainLength; i++) {
+      task = task.continueWith(INCREMENT, executors.get());
+    }
+    tcs.setResult(0);
+    task.waitForCompletion();
+    return task.getResult();
+  }
+
+  @Benchmark
+  public Integer continueWithCompleted(BenchmarkExecutors executors)
+      throws InterruptedException {
+    Task<Integer> task = Task.forResult(0);
+    for (int i = 0; i < chainLength; i++) {
+      task = task.continueWith(INCREMENT, executors.get());
+    }
+    task.waitForCompletion();
+    return task.getResult();
+  }
+
+  @Benchmark
+  public Integer onSuccess(BenchmarkExecutors executors) throws InterruptedException {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < chainLength; i++) {
+      task = task.onSuccess(INCREMENT, executors.get());
+    }
+    tcs.setResult(0);
+    task.waitForCompletion();
+    return task.getResult();
+  }
+
+  @Benchmark
+  public Exception onSuccessFaulted(BenchmarkExecutors executors) throws InterruptedException {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < chainLength; i++) {
+      task = task.onSuccess(INCREMENT, executors.get());
+    }
+    tcs.setError(new RuntimeException());
+    task.waitForCompletion();
+    return task.getError();
+  }
+
+  @Benchmark
+  public Integer onSuccessTask(BenchmarkExecutors executors) throws InterruptedException {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < chainLength; i++) {
+      task = task.onSuccessTask(new Continuation<Integer, Task<Integer>>() {
+        @Override
+        public Task<Integer> then(Task<Integer> task) {
+          return Task.forResult(task.getResult() + 1);
+        }
+      }, executors.get());
+    }
+    tcs.setResult(0);
+    task.waitForCompletion();
+    return task.getResult();
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link TimingWheel} with the {@link ScheduledExecutorService} it replaced, for
+ * timeouts that are cancelled before they fire while many others are pending.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TimerBenchmark {
+
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  @Param({"wheel", "scheduled"})
+  public String timer;
+
+  @Param({"100", "10000"})
+  public int timeoutCount;
+
+  private TimingWheel wheel;
+  private ScheduledExecutorService scheduled;
+  private TimingWheel.Timeout[] timeouts;
+  private ScheduledFuture<?>[] futures;
+
+  @Setup
+  public void setUp() {
+    wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 512);
+    scheduled = Executors.newSingleThreadScheduledExecutor();
+    timeouts = new TimingWheel.Timeout[timeoutCount];
+    futures = new ScheduledFuture<?>[timeoutCount];
+  }
+
+  @TearDown
+  public void tearDown() {
+    wheel.stop();
+    scheduled.shutdownNow();
+  }
+
+  @Benchmark
+  public int scheduleAndCancel() {
+    if (timer.equals("wheel")) {
+      for (int i = 0; i < timeoutCount; i++) {
+        timeouts[i] = wheel.schedule(NOOP, 60000, TimeUnit.MILLISECONDS);
+      }
+      for (int i = 0; i < timeoutCount; i++) {
+        timeouts[i].cancel();
+      }
+    } else {
+      for (int i = 0; i < timeoutCount; i++) {
+        futures[i] = scheduled.schedule(NOOP, 60000, TimeUnit.MILLISECONDS);
+      }
+      for (int i = 0; i < timeoutCount; i++) {
+        futures[i].cancel(false);
+      }
+    }
+    return timeoutCount;
+  }
+
+  @Benchmark
+  public CancellationTokenSource delayAndCancel() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+    if (timer.equals("wheel")) {
+      for (int i = 0; i < timeoutCount; i++) {
+        Task.delay(60000, wheel, token);
+      }
+    } else {
+      for (int i = 0; i < timeoutCount; i++) {
+        delay(60000, scheduled, token);
+      }
+    }
+    cts.cancel();
+    return cts;
+  }
+
+  /**
+   * {@link Task#delay(long, CancellationToken)} as it was implemented on a
+   * {@link ScheduledExecutorService}.
+   */
+  private static Task<Void> delay(long delay, ScheduledExecutorService executor,
+      CancellationToken cancellationToken) {
+    if (cancellationToken != null && cancellationToken.isCancellationRequested()) {
+      return Task.cancelled();
+    }
+
+    if (delay <= 0) {
+      return Task.forResult(null);
+    }
+
+    final TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
+    final ScheduledFuture<?> scheduled = executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        tcs.trySetResult(null);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+
+    if (cancellationToken != null) {
+      cancellationToken.register(new Runnable() {
+        @Override
+        public void run() {
+          scheduled.cancel(true);
+          tcs.trySetCancelled();
+        }
+      });
+    }
+
+    return tcs.getTask();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures aggregating large collections of tasks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class WhenAllBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  public int taskCount;
+
+  private List<Task<Integer>> completed;
+  private List<TaskCompletionSource<Integer>> sources;
+  private List<Task<Integer>> pending;
+
+  @Setup
+  public void setUpCompleted() {
+    completed = new ArrayList<>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      completed.add(Task.forResult(i));
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpPending() {
+    sources = new ArrayList<>(taskCount);
+    pending = new ArrayList<>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+      sources.add(tcs);
+      pending.add(tcs.getTask());
+    }
+  }
+
+  @Benchmark
+  public Task<Void> whenAllCompleted() {
+    return Task.whenAll(completed);
+  }
+
+  @Benchmark
+  public Task<List<Integer>> whenAllResultCompleted() {
+    return Task.whenAllResult(completed);
+  }
+
+  @Benchmark
+  public Task<Void> whenAllPending() {
+    Task<Void> all = Task.whenAll(pending);
+    for (TaskCompletionSource<Integer> tcs : sources) {
+      tcs.setResult(0);
+    }
+    return all;
+  }
+
+  @Benchmark
+  public Task<List<Integer>> whenAllResultPending() {
+    Task<List<Integer>> all = Task.whenAllResult(pending);
+    for (TaskCompletionSource<Integer> tcs : sources) {
+      tcs.setResult(0);
+    }
+    return all;
+  }
+
+  @Benchmark
+  public Task<Task<Integer>> whenAnyResultPending() {
+    Task<Task<Integer>> any = Task.whenAnyResult(pending);
+    for (TaskCompletionSource<Integer> tcs : sources) {
+      tcs.setResult(0);
+    }
+    return any;
+  }
+
+  @Benchmark
+  public Task<Void> whenAllInBackground() throws InterruptedException {
+    List<Task<Integer>> tasks = new ArrayList<>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      final int value = i;
+      tasks.add(Task.callInBackground(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return value;
+        }
+      }));
+    }
+    Task<Void> all = Task.whenAll(tasks);
+    all.waitForCompletion();
+    return all;
+  }
+}
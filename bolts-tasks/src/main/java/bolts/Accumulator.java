@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+/**
+ * A function folding the results of tasks into an accumulated value, one result at a time.
+ *
+ * If you wish to have the Task of the fold be cancelled then throw a
+ * {@link java.util.concurrent.CancellationException} from the Accumulator.
+ *
+ * @see Task#reduce
+ */
+public interface Accumulator<TAccumulate, TResult> {
+  TAccumulate accumulate(TAccumulate accumulated, TResult result) throws Exception;
+}
@@ -6,17 +6,21 @@
  */
 package bolts;
 
+import java.util.ArrayDeque;
 import java.util.Locale;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Collection of {@link Executor}s to use in conjunction with {@link Task}.
  */
 /* package */ final class BoltsExecutors {
 
+  // Delays are run within 10ms of their due time, a turn of the wheel covers about 5 seconds.
+  private static final long TIMER_TICK_MILLIS = 10;
+  private static final int TIMER_TICKS_PER_WHEEL = 512;
+
   private static final BoltsExecutors INSTANCE = new BoltsExecutors();
 
   private static boolean isAndroidRuntime() {
@@ -28,14 +32,14 @@ import java.util.concurrent.ScheduledExecutorService;
   }
 
   private final ExecutorService background;
-  private final ScheduledExecutorService scheduled;
+  private final TimingWheel timer;
   private final Executor immediate;
 
   private BoltsExecutors() {
     background = !isAndroidRuntime()
         ? java.util.concurrent.Executors.newCachedThreadPool()
         : AndroidExecutors.newCachedThreadPool();
-    scheduled = Executors.newSingleThreadScheduledExecutor();
+    timer = new TimingWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_TICKS_PER_WHEEL);
     immediate = new ImmediateExecutor();
   }
 
@@ -46,14 +50,17 @@ import java.util.concurrent.ScheduledExecutorService;
     return INSTANCE.background;
   }
 
-  /* package */ static ScheduledExecutorService scheduled() {
-    return INSTANCE.scheduled;
+  /**
+   * The {@link TimingWheel} that delays and scheduled cancellations are run on.
+   */
+  /* package */ static TimingWheel timer() {
+    return INSTANCE.timer;
   }
 
   /**
    * An {@link java.util.concurrent.Executor} that executes tasks in the current thread unless
-   * the stack runs too deep, at which point it will delegate to {@link BoltsExecutors#background}
-   * in order to trim the stack.
+   * the stack runs too deep, at which point it will defer them until the outermost task running on
+   * this thread has returned in order to trim the stack.
    */
   /* package */ static Executor immediate() {
     return INSTANCE.immediate;
@@ -62,58 +69,48 @@ import java.util.concurrent.ScheduledExecutorService;
   /**
    * An {@link java.util.concurrent.Executor} that runs a runnable inline (rather than scheduling it
    * on a thread pool) as long as the recursion depth is less than MAX_DEPTH. If the executor has
-   * recursed too deeply, it will instead delegate to the {@link Task#BACKGROUND_EXECUTOR} in order
-   * to trim the stack.
+   * recursed too deeply, the runnable is queued on a per-thread trampoline that is drained by the
+   * outermost frame once it returns, so execution stays on the same thread with a bounded stack.
+   * <p/>
+   * A runnable that blocks waiting for work it has deferred this way would never be woken up, this
+   * executor should only be used for continuations that do not block.
    */
   private static class ImmediateExecutor implements Executor {
     private static final int MAX_DEPTH = 15;
-    private ThreadLocal<Integer> executionDepth = new ThreadLocal<>();
 
-    /**
-     * Increments the depth.
-     *
-     * @return the new depth value.
-     */
-    private int incrementDepth() {
-      Integer oldDepth = executionDepth.get();
-      if (oldDepth == null) {
-        oldDepth = 0;
-      }
-      int newDepth = oldDepth + 1;
-      executionDepth.set(newDepth);
-      return newDepth;
+    private static class Trampoline {
+      private int depth;
+      private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
     }
 
-    /**
-     * Decrements the depth.
-     *
-     * @return the new depth value.
-     */
-    private int decrementDepth() {
-      Integer oldDepth = executionDepth.get();
-      if (oldDepth == null) {
-        oldDepth = 0;
+    private final ThreadLocal<Trampoline> trampolines = new ThreadLocal<Trampoline>() {
+      @Override
+      protected Trampoline initialValue() {
+        return new Trampoline();
       }
-      int newDepth = oldDepth - 1;
-      if (newDepth == 0) {
-        executionDepth.remove();
-      } else {
-        executionDepth.set(newDepth);
-      }
-      return newDepth;
-    }
+    };
 
     @Override
     public void execute(Runnable command) {
-      int depth = incrementDepth();
+      Trampoline trampoline = trampolines.get();
+      if (trampoline.depth >= MAX_DEPTH) {
+        trampoline.queue.add(command);
+        return;
+      }
+
+      trampoline.depth++;
       try {
-        if (depth <= MAX_DEPTH) {
-          command.run();
-        } else {
-          BoltsExecutors.background().execute(command);
+        command.run();
+        if (trampoline.depth == 1) {
+          // Runnables queued while the stack was too deep start over from this depth. If one of
+          // them throws, the rest are run by the next outermost frame on this thread.
+          Runnable queued;
+          while ((queued = trampoline.queue.poll()) != null) {
+            queued.run();
+          }
         }
       } finally {
-        decrementDepth();
+        trampoline.depth--;
       }
     }
   }
@@ -7,6 +7,7 @@
 package bolts;
 
 import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Represents a callback delegate that has been registered with a {@link CancellationToken}.
@@ -15,10 +16,16 @@ import java.io.Closeable;
  */
 public class CancellationTokenRegistration implements Closeable {
 
-  private final Object lock = new Object();
-  private CancellationTokenSource tokenSource;
-  private Runnable action;
-  private boolean closed;
+  private static final AtomicReferenceFieldUpdater<CancellationTokenRegistration, Runnable> ACTION =
+      AtomicReferenceFieldUpdater.newUpdater(
+          CancellationTokenRegistration.class, Runnable.class, "action");
+
+  private final CancellationTokenSource tokenSource;
+  // Cleared by whichever of close() and runAction() comes first, so that the action runs at most
+  // once and never after the registration has been closed.
+  private volatile Runnable action;
+  // the registration that was made before this one, while both are waiting for the cancellation
+  /* package */ CancellationTokenRegistration next;
 
   /* package */ CancellationTokenRegistration(CancellationTokenSource tokenSource, Runnable action) {
     this.tokenSource = tokenSource;
@@ -26,34 +33,26 @@ public class CancellationTokenRegistration implements Closeable {
   }
 
   /**
-   * Unregisters the callback runnable from the cancellation token.
+   * Unregisters the callback runnable from the cancellation token. If the cancellation is already
+   * running the callback, this returns without waiting for it.
    */
   @Override
   public void close() {
-    synchronized (lock) {
-      if (closed) {
-        return;
-      }
-
-      closed = true;
+    if (ACTION.getAndSet(this, null) != null) {
       tokenSource.unregister(this);
-      tokenSource = null;
-      action = null;
     }
   }
 
-  /* package */ void runAction() {
-    synchronized (lock) {
-      throwIfClosed();
-      action.run();
-      close();
-    }
+  /* package */ boolean isClosed() {
+    return action == null;
   }
 
-  private void throwIfClosed() {
-    if (closed) {
-      throw new IllegalStateException("Object already closed");
+  /* package */ void runAction() {
+    // No lock is held while running the action, a registration that has been claimed here is
+    // closed as far as everyone else is concerned.
+    Runnable action = ACTION.getAndSet(this, null);
+    if (action != null) {
+      action.run();
     }
   }
-
 }
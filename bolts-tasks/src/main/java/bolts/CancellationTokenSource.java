@@ -7,13 +7,11 @@
 package bolts;
 
 import java.io.Closeable;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Signals to a {@link CancellationToken} that it should be canceled. To create a
@@ -25,12 +23,92 @@ import java.util.concurrent.TimeUnit;
  */
 public class CancellationTokenSource implements Closeable {
 
-  private final Object lock = new Object();
-  private final List<CancellationTokenRegistration> registrations = new ArrayList<>();
-  private final ScheduledExecutorService executor = BoltsExecutors.scheduled();
-  private ScheduledFuture<?> scheduledCancellation;
-  private boolean cancellationRequested;
-  private boolean closed;
+  // Terminates the stack of registrations once it has been drained by cancel() or close(), no more
+  // registrations can be pushed.
+  private static final CancellationTokenRegistration DRAINED =
+      new CancellationTokenRegistration(null, null);
+
+  // Closed registrations are only swept from the stack once there are at least that many of them.
+  private static final int MIN_SWEEP = 16;
+
+  private static final AtomicReferenceFieldUpdater<CancellationTokenSource,
+      CancellationTokenRegistration> REGISTRATIONS = AtomicReferenceFieldUpdater.newUpdater(
+          CancellationTokenSource.class, CancellationTokenRegistration.class, "registrations");
+  private static final AtomicReferenceFieldUpdater<CancellationTokenSource, TimingWheel.Timeout>
+      SCHEDULED_CANCELLATION = AtomicReferenceFieldUpdater.newUpdater(
+          CancellationTokenSource.class, TimingWheel.Timeout.class, "scheduledCancellation");
+  private static final AtomicIntegerFieldUpdater<CancellationTokenSource> SIZE =
+      AtomicIntegerFieldUpdater.newUpdater(CancellationTokenSource.class, "size");
+  private static final AtomicIntegerFieldUpdater<CancellationTokenSource> CLOSED_REGISTRATIONS =
+      AtomicIntegerFieldUpdater.newUpdater(CancellationTokenSource.class, "closedRegistrations");
+  private static final AtomicIntegerFieldUpdater<CancellationTokenSource> SWEEPING =
+      AtomicIntegerFieldUpdater.newUpdater(CancellationTokenSource.class, "sweeping");
+
+  private final CancellationToken token = new CancellationToken(this);
+  private final TimingWheel timer = BoltsExecutors.timer();
+  private volatile TimingWheel.Timeout scheduledCancellation;
+  private volatile boolean cancellationRequested;
+  private volatile boolean closed;
+  // The registrations to notify, most recent first. A closed registration stays on the stack until
+  // enough of them have been closed to be worth sweeping, so that closing one is O(1).
+  private volatile CancellationTokenRegistration registrations;
+  // approximate number of registrations on the stack, and of closed ones among them
+  private volatile int size;
+  private volatile int closedRegistrations;
+  // 1 while a thread is removing the closed registrations, see sweep()
+  private volatile int sweeping;
+  // the registrations this source holds on the tokens it is linked to
+  private volatile CancellationTokenRegistration[] linkedRegistrations;
+
+  /**
+   * Creates a {@code CancellationTokenSource} that is cancelled as soon as any of the given tokens
+   * is, or when it is cancelled itself. A single registration is made on each of the tokens, it is
+   * closed once the new source has been cancelled or closed.
+   *
+   * @param tokens The tokens to link the new source to, {@code null} tokens are ignored.
+   * @throws IllegalStateException if the source of one of the tokens has been closed.
+   */
+  public static CancellationTokenSource createLinkedTokenSource(CancellationToken... tokens) {
+    final CancellationTokenSource cts = new CancellationTokenSource();
+    Runnable cancel = new Runnable() {
+      @Override
+      public void run() {
+        cts.cancelLinked();
+      }
+    };
+
+    CancellationTokenRegistration[] registrations = new CancellationTokenRegistration[tokens.length];
+    int count = 0;
+    try {
+      for (int i = 0; i < tokens.length && !cts.cancellationRequested; i++) {
+        if (tokens[i] != null && !contains(tokens, i, tokens[i])) {
+          CancellationTokenRegistration registration = tokens[i].register(cancel);
+          registrations[count++] = registration;
+        }
+      }
+    } catch (RuntimeException e) {
+      for (int i = 0; i < count; i++) {
+        registrations[i].close();
+      }
+      throw e;
+    }
+
+    cts.linkedRegistrations = registrations;
+    // One of the tokens may have been cancelled before the registrations could be seen.
+    if (cts.cancellationRequested) {
+      cts.unlink();
+    }
+    return cts;
+  }
+
+  private static boolean contains(CancellationToken[] tokens, int end, CancellationToken token) {
+    for (int i = 0; i < end; i++) {
+      if (tokens[i] == token) {
+        return true;
+      }
+    }
+    return false;
+  }
 
   /**
    * Create a new {@code CancellationTokenSource}.
@@ -42,39 +120,32 @@ public class CancellationTokenSource implements Closeable {
    * @return {@code true} if cancellation has been requested for this {@code CancellationTokenSource}.
    */
   public boolean isCancellationRequested() {
-    synchronized (lock) {
-      throwIfClosed();
-      return cancellationRequested;
-    }
+    throwIfClosed();
+    return cancellationRequested;
   }
 
   /**
    * @return the token that can be passed to asynchronous method to control cancellation.
    */
   public CancellationToken getToken() {
-    synchronized (lock) {
-      throwIfClosed();
-      return new CancellationToken(this);
-    }
+    throwIfClosed();
+    return token;
   }
 
   /**
    * Cancels the token if it has not already been cancelled.
    */
   public void cancel() {
-    List<CancellationTokenRegistration> registrations;
-    synchronized (lock) {
-      throwIfClosed();
-      if (cancellationRequested) {
-        return;
-      }
-
-      cancelScheduledCancellation();
-
-      cancellationRequested = true;
-      registrations = new ArrayList<>(this.registrations);
+    throwIfClosed();
+    if (cancellationRequested) {
+      return;
     }
-    notifyListeners(registrations);
+
+    cancellationRequested = true;
+    cancelScheduledCancellation();
+    // Only the first thread to get here sees the registrations, it notifies them once.
+    notifyListeners(takeRegistrations());
+    unlink();
   }
 
   /**
@@ -96,58 +167,71 @@ public class CancellationTokenSource implements Closeable {
       return;
     }
 
-    synchronized (lock) {
-      if (cancellationRequested) {
-        return;
-      }
-
-      cancelScheduledCancellation();
+    if (cancellationRequested) {
+      return;
+    }
 
-      if (delay != -1) {
-        scheduledCancellation = executor.schedule(new Runnable() {
-          @Override
-          public void run() {
-            synchronized (lock) {
-              scheduledCancellation = null;
+    TimingWheel.Timeout scheduled = null;
+    if (delay != -1) {
+      scheduled = timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (!closed) {
+            try {
+              cancel();
+            } catch (IllegalStateException e) {
+              // Closed concurrently, there is nothing left to cancel.
             }
-            cancel();
           }
-        }, delay, timeUnit);
-      }
+        }
+      }, delay, timeUnit);
+    }
+    TimingWheel.Timeout previous = SCHEDULED_CANCELLATION.getAndSet(this, scheduled);
+    if (previous != null) {
+      previous.cancel();
+    }
+    // cancel() or close() may have run before the new cancellation could be seen.
+    if (cancellationRequested || closed) {
+      cancelScheduledCancellation();
     }
   }
 
   @Override
   public void close() {
-    synchronized (lock) {
-      if (closed) {
-        return;
-      }
-
-      cancelScheduledCancellation();
+    if (closed) {
+      return;
+    }
 
-      List<CancellationTokenRegistration> registrations = new ArrayList<>(this.registrations);
-      for (CancellationTokenRegistration registration : registrations) {
-        registration.close();
-      }
-      this.registrations.clear();
-      closed = true;
+    closed = true;
+    cancelScheduledCancellation();
+    CancellationTokenRegistration registration = takeRegistrations();
+    while (registration != null && registration != DRAINED) {
+      CancellationTokenRegistration next = registration.next;
+      registration.next = null;
+      registration.close();
+      registration = next;
     }
+    unlink();
   }
 
   /* package */ CancellationTokenRegistration register(Runnable action) {
-    CancellationTokenRegistration ctr;
-    synchronized (lock) {
-      throwIfClosed();
+    throwIfClosed();
 
-      ctr = new CancellationTokenRegistration(this, action);
-      if (cancellationRequested) {
+    CancellationTokenRegistration ctr = new CancellationTokenRegistration(this, action);
+    for (;;) {
+      CancellationTokenRegistration head = registrations;
+      if (head == DRAINED) {
+        // Either cancelled or closed in the meantime.
+        throwIfClosed();
         ctr.runAction();
-      } else {
-        registrations.add(ctr);
+        return ctr;
+      }
+      ctr.next = head;
+      if (REGISTRATIONS.compareAndSet(this, head, ctr)) {
+        SIZE.incrementAndGet(this);
+        return ctr;
       }
     }
-    return ctr;
   }
 
   /**
@@ -155,28 +239,163 @@ public class CancellationTokenSource implements Closeable {
    * May be used to stop execution of a thread or runnable.
    */
   /* package */ void throwIfCancellationRequested() throws CancellationException {
-    synchronized (lock) {
-      throwIfClosed();
-      if (cancellationRequested) {
-        throw new CancellationException();
-      }
+    throwIfClosed();
+    if (cancellationRequested) {
+      throw new CancellationException();
     }
   }
 
   /* package */ void unregister(CancellationTokenRegistration registration) {
-    synchronized (lock) {
-      throwIfClosed();
-      registrations.remove(registration);
+    int closedRegistrations = CLOSED_REGISTRATIONS.incrementAndGet(this);
+    if (closedRegistrations >= MIN_SWEEP && closedRegistrations * 2 >= size) {
+      sweep();
     }
   }
 
-  // This method makes no attempt to perform any synchronization or state checks itself and once
-  // invoked will notify all runnables unconditionally. As such if you require the notification event
-  // to be synchronized with state changes you should provide external synchronization.
-  // If this is invoked without external synchronization there is a probability the token becomes
-  // cancelled concurrently.
-  private void notifyListeners(List<CancellationTokenRegistration> registrations) {
+  /**
+   * Removes the closed registrations from the stack. They are unlinked in place: pushes only ever
+   * replace the head, and cancel() or close() wait for the sweep to end before they walk the
+   * registrations they have taken, see {@link #takeRegistrations()}. Only one thread sweeps at a
+   * time, the others leave the closed registrations to it.
+   */
+  private void sweep() {
+    if (!SWEEPING.compareAndSet(this, 0, 1)) {
+      return;
+    }
+    int removed = 0;
+    try {
+      CancellationTokenRegistration head = registrations;
+      while (head != null && head != DRAINED && head.isClosed()) {
+        if (REGISTRATIONS.compareAndSet(this, head, head.next)) {
+          head.next = null;
+          removed++;
+        }
+        head = registrations;
+      }
+      if (head == null || head == DRAINED) {
+        return;
+      }
+
+      // The registrations under the head are not touched by pushes, nor by cancel() or close()
+      // until we are done.
+      CancellationTokenRegistration previous = head;
+      CancellationTokenRegistration registration = head.next;
+      while (registration != null) {
+        CancellationTokenRegistration next = registration.next;
+        if (registration.isClosed()) {
+          previous.next = next;
+          registration.next = null;
+          removed++;
+        } else {
+          previous = registration;
+        }
+        registration = next;
+      }
+    } finally {
+      SIZE.addAndGet(this, -removed);
+      CLOSED_REGISTRATIONS.addAndGet(this, -removed);
+      sweeping = 0;
+    }
+  }
+
+  /**
+   * Takes the registrations for good, once a sweep that may still be unlinking some of them has
+   * ended.
+   */
+  private CancellationTokenRegistration takeRegistrations() {
+    CancellationTokenRegistration head = REGISTRATIONS.getAndSet(this, DRAINED);
+    while (sweeping != 0) {
+      // A sweep only walks the stack, it ends shortly.
+      Thread.yield();
+    }
+    return head;
+  }
+
+  /**
+   * Closes the registrations made so far without closing this source, for an owner whose token no
+   * longer has anything to cancel but may still be handed out. Registrations made afterwards are
+   * kept as usual.
+   */
+  /* package */ void releaseRegistrations() {
+    CancellationTokenRegistration head;
+    do {
+      head = registrations;
+      if (head == null || head == DRAINED) {
+        return;
+      }
+    } while (!REGISTRATIONS.compareAndSet(this, head, null));
+    while (sweeping != 0) {
+      Thread.yield();
+    }
+
+    int released = 0;
+    while (head != null) {
+      CancellationTokenRegistration next = head.next;
+      head.next = null;
+      head.close();
+      released++;
+      head = next;
+    }
+    // Each of them has been counted as closed, either now or when it was closed before.
+    SIZE.addAndGet(this, -released);
+    CLOSED_REGISTRATIONS.addAndGet(this, -released);
+  }
+
+  /**
+   * @return the number of registrations that are still waiting for the cancellation. This walks
+   *         the registrations, it should not be called concurrently with other operations.
+   */
+  /* package */ int openRegistrationCount() {
+    int count = 0;
+    CancellationTokenRegistration registration = registrations;
+    while (registration != null && registration != DRAINED) {
+      if (!registration.isClosed()) {
+        count++;
+      }
+      registration = registration.next;
+    }
+    return count;
+  }
+
+  // Cancels this source on behalf of a token it is linked to, unless it has been closed since.
+  private void cancelLinked() {
+    if (closed) {
+      return;
+    }
+    try {
+      cancel();
+    } catch (IllegalStateException e) {
+      // Closed concurrently, the registrations are being closed.
+    }
+  }
+
+  // Closes the registrations on the tokens this source is linked to, they are no longer needed.
+  private void unlink() {
+    CancellationTokenRegistration[] registrations = linkedRegistrations;
+    if (registrations == null) {
+      return;
+    }
+    linkedRegistrations = null;
     for (CancellationTokenRegistration registration : registrations) {
+      if (registration != null) {
+        registration.close();
+      }
+    }
+  }
+
+  // Notifies the registrations of a drained stack in the order they were registered.
+  private void notifyListeners(CancellationTokenRegistration head) {
+    CancellationTokenRegistration ordered = null;
+    while (head != null && head != DRAINED) {
+      CancellationTokenRegistration next = head.next;
+      head.next = ordered;
+      ordered = head;
+      head = next;
+    }
+    while (ordered != null) {
+      CancellationTokenRegistration registration = ordered;
+      ordered = registration.next;
+      registration.next = null;
       registration.runAction();
     }
   }
@@ -189,20 +408,16 @@ public class CancellationTokenSource implements Closeable {
         Boolean.toString(isCancellationRequested()));
   }
 
-  // This method makes no attempt to perform any synchronization itself - you should ensure
-  // accesses to this method are synchronized if you want to ensure correct behaviour in the
-  // face of a concurrent invocation of the close method.
   private void throwIfClosed() {
     if (closed) {
       throw new IllegalStateException("Object already closed");
     }
   }
 
-  // Performs no synchronization.
   private void cancelScheduledCancellation() {
-    if (scheduledCancellation != null) {
-      scheduledCancellation.cancel(true);
-      scheduledCancellation = null;
+    TimingWheel.Timeout scheduled = SCHEDULED_CANCELLATION.getAndSet(this, null);
+    if (scheduled != null) {
+      scheduled.cancel();
     }
   }
 }
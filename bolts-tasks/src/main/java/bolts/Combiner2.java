@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+/**
+ * A function combining the results of two tasks once they have all completed successfully.
+ *
+ * If you wish to have the combined Task be cancelled then throw a
+ * {@link java.util.concurrent.CancellationException} from the Combiner.
+ *
+ * @see Task#zip
+ */
+public interface Combiner2<T1, T2, TResult> {
+  TResult combine(T1 first, T2 second) throws Exception;
+}
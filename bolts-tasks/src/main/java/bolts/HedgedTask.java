@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an operation with hedged attempts: whenever the latest attempt has not completed within a
+ * delay, or as soon as it fails, another attempt of the same operation is started, up to a maximum
+ * number of attempts. The task of a {@code HedgedTask} ends with the result of the first attempt to
+ * complete successfully, after which the {@link CancellationTokenSource} it has been given is
+ * cancelled so that the other attempts can stop.
+ * <p/>
+ * The first attempt is started by the callable on the calling thread, the next ones on the
+ * background executor, so that a slow callable never holds up the timer shared by every delay.
+ * Closing the {@link CancellationTokenSource} while attempts are in flight cancels the task.
+ */
+public class HedgedTask<TResult> {
+
+  /**
+   * Starts the hedged attempts of an operation.
+   *
+   * @param attempt Starts one attempt of the operation.
+   * @param maxAttempts The maximum number of attempts, including the first one.
+   * @param delay The number of milliseconds to wait for an attempt before starting another one.
+   */
+  public static <TResult> HedgedTask<TResult> call(Callable<Task<TResult>> attempt,
+      int maxAttempts, long delay) {
+    return call(attempt, maxAttempts, delay, null);
+  }
+
+  /**
+   * Starts the hedged attempts of an operation.
+   *
+   * @param attempt Starts one attempt of the operation, it should pass the token of {@code cts} to
+   *                the work it starts.
+   * @param maxAttempts The maximum number of attempts, including the first one.
+   * @param delay The number of milliseconds to wait for an attempt before starting another one.
+   * @param cts The source to cancel once an attempt has succeeded, may be {@code null}. Cancelling
+   *            it stops starting attempts and cancels the task.
+   */
+  public static <TResult> HedgedTask<TResult> call(Callable<Task<TResult>> attempt,
+      int maxAttempts, long delay, CancellationTokenSource cts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    HedgedTask<TResult> hedged = new HedgedTask<>(attempt, maxAttempts, delay, cts);
+    hedged.start();
+    return hedged;
+  }
+
+  private final TaskCompletionSource<TResult> tcs = new TaskCompletionSource<>();
+  private final Callable<Task<TResult>> attempt;
+  private final int maxAttempts;
+  private final long delay;
+  private final CancellationTokenSource cts;
+  private final AtomicInteger attempts = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private HedgedTask(Callable<Task<TResult>> attempt, int maxAttempts, long delay,
+      CancellationTokenSource cts) {
+    this.attempt = attempt;
+    this.maxAttempts = maxAttempts;
+    this.delay = delay;
+    this.cts = cts;
+  }
+
+  /**
+   * @return the Task that ends with the result of the first successful attempt, or with the outcome
+   *         of the last attempt if all of them failed.
+   */
+  public Task<TResult> getTask() {
+    return tcs.getTask();
+  }
+
+  /**
+   * @return the number of attempts that have been started so far, including the first one.
+   */
+  public int getAttemptCount() {
+    return attempts.get();
+  }
+
+  /**
+   * @return the number of attempts that have been started in addition to the first one.
+   */
+  public int getHedgeCount() {
+    return Math.max(attempts.get() - 1, 0);
+  }
+
+  private void start() {
+    attempts.incrementAndGet();
+    Task<TResult> task;
+    try {
+      task = attempt.call();
+      if (task == null) {
+        task = Task.forResult(null);
+      }
+    } catch (Exception e) {
+      task = Task.forError(e);
+    }
+
+    task.continueWith(new Continuation<TResult, Void>() {
+      @Override
+      public Void then(Task<TResult> task) {
+        onAttemptCompleted(task);
+        return null;
+      }
+    });
+
+    if (attempts.get() >= maxAttempts || tcs.getTask().isCompleted()) {
+      return;
+    }
+
+    // The delay has a source of its own, cancelled once the delay is no longer needed, so that its
+    // timer and its registration on the token do not outlive the attempt.
+    final CancellationTokenSource delayCts;
+    try {
+      delayCts = cts != null
+          ? CancellationTokenSource.createLinkedTokenSource(cts.getToken())
+          : new CancellationTokenSource();
+    } catch (IllegalStateException e) {
+      // The source has been closed, no more attempts can be cancelled.
+      tcs.trySetCancelled();
+      return;
+    }
+
+    // The next attempt starts when this one fails or has not completed within the delay,
+    // whichever comes first.
+    Task<Void> timer = Task.delay(delay, delayCts.getToken());
+    Task.whenAny(Arrays.<Task<?>>asList(task, timer)).continueWith(
+        new Continuation<Task<?>, Void>() {
+          @Override
+          public Void then(Task<Task<?>> task) {
+            delayCts.cancel();
+            // A successful attempt has already completed the task by now.
+            if (tcs.getTask().isCompleted()) {
+              return null;
+            }
+            if (isCancellationRequested()) {
+              tcs.trySetCancelled();
+            } else {
+              start();
+            }
+            return null;
+          }
+        }, Task.BACKGROUND_EXECUTOR);
+  }
+
+  private boolean isCancellationRequested() {
+    if (cts == null) {
+      return false;
+    }
+    try {
+      return cts.isCancellationRequested();
+    } catch (IllegalStateException e) {
+      // The source has been closed, no more attempts can be cancelled.
+      return true;
+    }
+  }
+
+  private void onAttemptCompleted(Task<TResult> task) {
+    if (task.isFaulted() || task.isCancelled()) {
+      Exception error = task.getError();
+      // The outcome of the last attempt to fail is the outcome of all of them.
+      if (failures.incrementAndGet() == maxAttempts) {
+        if (error != null) {
+          tcs.trySetError(error);
+        } else {
+          tcs.trySetCancelled();
+        }
+      }
+      return;
+    }
+
+    if (tcs.trySetResult(task.getResult()) && cts != null) {
+      try {
+        cts.cancel();
+      } catch (IllegalStateException e) {
+        // The source has been closed, there is nothing left to cancel.
+      }
+    }
+  }
+}
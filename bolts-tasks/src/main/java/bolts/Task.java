@@ -6,19 +6,21 @@
  */
 package bolts;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Represents the result of an asynchronous operation.
@@ -34,8 +36,8 @@ public class Task<TResult> {
 
   /**
    * An {@link java.util.concurrent.Executor} that executes tasks in the current thread unless
-   * the stack runs too deep, at which point it will delegate to {@link Task#BACKGROUND_EXECUTOR} in
-   * order to trim the stack.
+   * the stack runs too deep, at which point it will defer them until the outermost task running on
+   * the current thread has returned in order to trim the stack.
    */
   private static final Executor IMMEDIATE_EXECUTOR = BoltsExecutors.immediate();
 
@@ -85,14 +87,110 @@ public class Task<TResult> {
     unobservedExceptionHandler = eh;
   }
 
-  private final Object lock = new Object();
-  private boolean complete;
-  private boolean cancelled;
-  private TResult result;
-  private Exception error;
-  private boolean errorHasBeenObserved;
-  private UnobservedErrorNotifier unobservedErrorNotifier;
-  private List<Continuation<TResult, Void>> continuations = new ArrayList<>();
+  /**
+   * Describes a completed task that does not carry a plain non-null result: a {@code null} result,
+   * an error or cancellation. Keeping every outcome behind a single reference allows the whole state
+   * of the task to be read with one volatile load and to be set with one compare-and-set.
+   */
+  private static final class Outcome {
+    private final Exception error;
+
+    private Outcome(Exception error) {
+      this.error = error;
+    }
+  }
+
+  private static final Outcome NULL_RESULT = new Outcome(null);
+  private static final Outcome CANCELLED = new Outcome(null);
+
+  /**
+   * Replaces the outcome of a pending task that has been returned by a Task-based continuation:
+   * since the task returned by {@code continueWithTask} ends with the same outcome, the returned
+   * task is merged into it instead of forwarding its outcome through one more continuation. Every
+   * operation on a linked task is redirected to the root of its links.
+   * <p/>
+   * Loops written with {@code continueWithTask} return a new task from each iteration. Linking
+   * every one of them to the task returned by the first iteration means nothing keeps the tasks of
+   * the previous iterations reachable, so the loop runs in constant memory.
+   */
+  private static final class Link {
+    // Not necessarily the root, but always closer to it, it is updated as links get compressed.
+    private volatile Task<?> task;
+
+    private Link(Task<?> task) {
+      this.task = task;
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<Task, Object> OUTCOME =
+      AtomicReferenceFieldUpdater.newUpdater(Task.class, Object.class, "outcome");
+
+  // null while the task is pending, then either the result itself, an Outcome or a Link
+  private volatile Object outcome;
+
+  /**
+   * A node of the intrusive stack of continuations waiting for a task to complete.
+   */
+  private abstract static class ContinuationNode {
+    private ContinuationNode next;
+
+    /**
+     * Called once the task this node has been pushed on has completed.
+     */
+    abstract void onTaskCompleted(Task<?> task);
+
+    /**
+     * @return {@code true} once this node no longer needs to be notified, it may then be removed
+     *         from the task it has been pushed on, see {@link Task#removeDetachedContinuations()}.
+     */
+    boolean isDetached() {
+      return false;
+    }
+  }
+
+  // Terminates the continuation stack once it has been drained, no more nodes can be pushed.
+  private static final ContinuationNode DRAINED = new ContinuationNode() {
+    @Override
+    void onTaskCompleted(Task<?> task) {
+    }
+  };
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<Task, ContinuationNode> CONTINUATIONS =
+      AtomicReferenceFieldUpdater.newUpdater(Task.class, ContinuationNode.class, "continuations");
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<Task> SWEEPING =
+      AtomicIntegerFieldUpdater.newUpdater(Task.class, "sweeping");
+
+  /**
+   * Tasks of the current thread whose continuations have been deferred because the thread was
+   * already running too many nested continuations, see {@link #onCompleted()}.
+   */
+  private static final class CompletionQueue {
+    private int depth;
+    private final ArrayDeque<Task<?>> tasks = new ArrayDeque<>();
+  }
+
+  private static final int MAX_COMPLETION_DEPTH = 16;
+
+  private static final ThreadLocal<CompletionQueue> COMPLETION_QUEUES =
+      new ThreadLocal<CompletionQueue>() {
+        @Override
+        protected CompletionQueue initialValue() {
+          return new CompletionQueue();
+        }
+      };
+
+  // number of threads blocked in waitForCompletion(), only modified while holding the monitor
+  private volatile int waiters;
+  private volatile boolean errorHasBeenObserved;
+  private volatile UnobservedErrorNotifier unobservedErrorNotifier;
+  // null until the first continuation is added, DRAINED once the task has run its continuations
+  private volatile ContinuationNode continuations;
+  // 1 while a thread is removing the detached continuations, see removeDetachedContinuations()
+  private volatile int sweeping;
 
   /* package */ Task() {
   }
@@ -122,61 +220,77 @@ public class Task<TResult> {
    *         {@code false} otherwise.
    */
   public boolean isCompleted() {
-    synchronized (lock) {
-      return complete;
-    }
+    return outcome() != null;
   }
 
   /**
    * @return {@code true} if the task was cancelled, {@code false} otherwise.
    */
   public boolean isCancelled() {
-    synchronized (lock) {
-      return cancelled;
-    }
+    return outcome() == CANCELLED;
   }
 
   /**
    * @return {@code true} if the task has an error, {@code false} otherwise.
    */
   public boolean isFaulted() {
-    synchronized (lock) {
-      return getError() != null;
-    }
+    return getError() != null;
   }
 
   /**
    * @return The result of the task, if set. {@code null} otherwise.
    */
+  @SuppressWarnings("unchecked")
   public TResult getResult() {
-    synchronized (lock) {
-      return result;
-    }
+    Object outcome = outcome();
+    return outcome instanceof Outcome ? null : (TResult) outcome;
   }
 
   /**
    * @return The error for the task, if set. {@code null} otherwise.
    */
   public Exception getError() {
-    synchronized (lock) {
-      if (error != null) {
-        errorHasBeenObserved = true;
-        if (unobservedErrorNotifier != null) {
-          unobservedErrorNotifier.setObserved();
-          unobservedErrorNotifier = null;
-        }
+    Task<TResult> root = root();
+    if (root != this) {
+      return root.getError();
+    }
+
+    Object outcome = this.outcome;
+    Exception error = outcome instanceof Outcome ? ((Outcome) outcome).error : null;
+    if (error != null) {
+      errorHasBeenObserved = true;
+      UnobservedErrorNotifier notifier = unobservedErrorNotifier;
+      if (notifier != null) {
+        notifier.setObserved();
+        unobservedErrorNotifier = null;
       }
-      return error;
     }
+    return error;
   }
 
   /**
    * Blocks until the task is complete.
    */
   public void waitForCompletion() throws InterruptedException {
-    synchronized (lock) {
-      if (!isCompleted()) {
-        lock.wait();
+    for (;;) {
+      Task<TResult> task = root();
+      if (task.isCompleted()) {
+        return;
+      }
+      if (runDeferredContinuations()) {
+        continue;
+      }
+      // The task itself is used as the monitor so that tasks don't need to allocate a lock.
+      synchronized (task) {
+        task.waiters++;
+        try {
+          // Stops waiting once the task is linked too, the root is resolved again.
+          while (task.outcome == null) {
+            task.wait();
+          }
+        } finally {
+          task.waiters--;
+        }
       }
     }
   }
@@ -187,12 +301,59 @@ public class Task<TResult> {
    *         {@code false} otherwise.
    */
   public boolean waitForCompletion(long duration, TimeUnit timeUnit) throws InterruptedException {
-    synchronized (lock) {
-      if (!isCompleted()) {
-        lock.wait(timeUnit.toMillis(duration));
+    long remaining = timeUnit.toMillis(duration);
+    long deadline = System.currentTimeMillis() + remaining;
+    for (;;) {
+      Task<TResult> task = root();
+      if (task.isCompleted()) {
+        return true;
+      }
+      if (remaining <= 0) {
+        return false;
+      }
+      if (runDeferredContinuations()) {
+        remaining = deadline - System.currentTimeMillis();
+        continue;
       }
-      return isCompleted();
+      synchronized (task) {
+        task.waiters++;
+        try {
+          while (task.outcome == null && remaining > 0) {
+            task.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+          }
+        } finally {
+          task.waiters--;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the outcome of this task, following its links.
+   */
+  private Object outcome() {
+    Object outcome = this.outcome;
+    return outcome instanceof Link ? root().outcome() : outcome;
+  }
+
+  /**
+   * @return the task this task has been linked to by following its links, or this task if it
+   *         hasn't been linked.
+   */
+  @SuppressWarnings("unchecked")
+  private Task<TResult> root() {
+    Object outcome = this.outcome;
+    if (!(outcome instanceof Link)) {
+      return this;
     }
+    Link link = (Link) outcome;
+    Task<TResult> root = (Task<TResult>) link.task;
+    while ((outcome = root.outcome) instanceof Link) {
+      root = (Task<TResult>) ((Link) outcome).task;
+    }
+    link.task = root;
+    return root;
   }
 
   /**
@@ -235,7 +396,7 @@ public class Task<TResult> {
    *              negative values are treated as requests for immediate execution.
    */
   public static Task<Void> delay(long delay) {
-    return delay(delay, BoltsExecutors.scheduled(), null);
+    return delay(delay, BoltsExecutors.timer(), null);
   }
 
   /**
@@ -247,10 +408,10 @@ public class Task<TResult> {
    *                          completing the returned task.
    */
   public static Task<Void> delay(long delay, CancellationToken cancellationToken) {
-    return delay(delay, BoltsExecutors.scheduled(), cancellationToken);
+    return delay(delay, BoltsExecutors.timer(), cancellationToken);
   }
 
-  /* package */ static Task<Void> delay(long delay, ScheduledExecutorService executor, final CancellationToken cancellationToken) {
+  /* package */ static Task<Void> delay(long delay, TimingWheel timer, final CancellationToken cancellationToken) {
     if (cancellationToken != null && cancellationToken.isCancellationRequested()) {
       return Task.cancelled();
     }
@@ -260,7 +421,7 @@ public class Task<TResult> {
     }
 
     final bolts.TaskCompletionSource<Void> tcs = new bolts.TaskCompletionSource<>();
-    final ScheduledFuture<?> scheduled = executor.schedule(new Runnable() {
+    final TimingWheel.Timeout timeout = timer.schedule(new Runnable() {
       @Override
       public void run() {
         tcs.trySetResult(null);
@@ -271,7 +432,7 @@ public class Task<TResult> {
       cancellationToken.register(new Runnable() {
         @Override
         public void run() {
-          scheduled.cancel(true);
+          timeout.cancel();
           tcs.trySetCancelled();
         }
       });
@@ -389,6 +550,8 @@ public class Task<TResult> {
    * The returned task will complete when any of the supplied tasks has completed. The returned task
    * will always end in the completed state with its result set to the first task to complete. This
    * is true even if the first task to complete ended in the canceled or faulted state.
+   * <p/>
+   * Once the first task has completed, the returned task stops observing the other tasks.
    *
    * @param tasks
    *          The tasks to wait on for completion.
@@ -396,64 +559,66 @@ public class Task<TResult> {
    *         The return task's result is the task that completed.
    */
   public static <TResult> Task<Task<TResult>> whenAnyResult(Collection<? extends Task<TResult>> tasks) {
+    return whenAnyResult(tasks, null);
+  }
+
+  /**
+   * Creates a task that will complete when any of the supplied tasks have completed, then cancels
+   * the given {@link CancellationTokenSource}, whose token should be passed to the work behind the
+   * tasks so that the tasks which lost the race can stop early.
+   *
+   * @param tasks
+   *          The tasks to wait on for completion.
+   * @param cts
+   *          The source to cancel once one of the tasks has completed, may be {@code null}.
+   * @return A task that represents the completion of one of the supplied tasks.
+   *         The return task's result is the task that completed.
+   * @see #whenAnyResult(Collection)
+   */
+  public static <TResult> Task<Task<TResult>> whenAnyResult(
+      Collection<? extends Task<TResult>> tasks, CancellationTokenSource cts) {
     if (tasks.size() == 0) {
       return Task.forResult(null);
     }
 
-    final bolts.TaskCompletionSource<Task<TResult>> firstCompleted = new bolts.TaskCompletionSource<>();
-    final AtomicBoolean isAnyTaskComplete = new AtomicBoolean(false);
-
-    for (Task<TResult> task : tasks) {
-      task.continueWith(new Continuation<TResult, Void>() {
-        @Override
-        public Void then(Task<TResult> task) {
-          if (isAnyTaskComplete.compareAndSet(false, true)) {
-            firstCompleted.setResult(task);
-          } else {
-            Throwable ensureObserved = task.getError();
-          }
-          return null;
-        }
-      });
-    }
-    return firstCompleted.getTask();
+    Task<?>[] array = tasks.toArray(new Task<?>[tasks.size()]);
+    return registerUntilCompleted(new WhenAny<TResult>(array, cts), array);
   }
 
-   /**
+  /**
    * Creates a task that will complete when any of the supplied tasks have completed.
    * <p/>
    * The returned task will complete when any of the supplied tasks has completed. The returned task
    * will always end in the completed state with its result set to the first task to complete. This
    * is true even if the first task to complete ended in the canceled or faulted state.
+   * <p/>
+   * Once the first task has completed, the returned task stops observing the other tasks.
    *
    * @param tasks
    *          The tasks to wait on for completion.
    * @return A task that represents the completion of one of the supplied tasks.
    *         The return task's Result is the task that completed.
    */
-  @SuppressWarnings("unchecked")
   public static Task<Task<?>> whenAny(Collection<? extends Task<?>> tasks) {
-    if (tasks.size() == 0) {
-      return Task.forResult(null);
-    }
-
-    final bolts.TaskCompletionSource<Task<?>> firstCompleted = new bolts.TaskCompletionSource<>();
-    final AtomicBoolean isAnyTaskComplete = new AtomicBoolean(false);
+    return whenAny(tasks, null);
+  }
 
-    for (Task<?> task : tasks) {
-      ((Task<Object>) task).continueWith(new Continuation<Object, Void>() {
-        @Override
-        public Void then(Task<Object> task) {
-          if (isAnyTaskComplete.compareAndSet(false, true)) {
-            firstCompleted.setResult(task);
-          } else {
-            Throwable ensureObserved = task.getError();
-          }
-          return null;
-        }
-      });
-    }
-    return firstCompleted.getTask();
+  /**
+   * Creates a task that will complete when any of the supplied tasks have completed, then cancels
+   * the given {@link CancellationTokenSource}, see
+   * {@link #whenAnyResult(Collection, CancellationTokenSource)}.
+   *
+   * @param tasks
+   *          The tasks to wait on for completion.
+   * @param cts
+   *          The source to cancel once one of the tasks has completed, may be {@code null}.
+   * @return A task that represents the completion of one of the supplied tasks.
+   *         The return task's Result is the task that completed.
+   */
+  @SuppressWarnings("unchecked")
+  public static Task<Task<?>> whenAny(Collection<? extends Task<?>> tasks,
+      CancellationTokenSource cts) {
+    return (Task<Task<?>>) (Task<?>) whenAnyResult((Collection<Task<Object>>) tasks, cts);
   }
 
   /**
@@ -477,25 +642,23 @@ public class Task<TResult> {
    * If the supplied collection contains no tasks, the returned task will immediately transition to
    * a completed state before it's returned to the caller.
    * The returned {@code List&lt;TResult&gt;} will contain 0 elements.
+   * <p/>
+   * The returned list cannot be modified.
    *
    * @param tasks The tasks that the return value will wait for before completing.
    * @return A Task that will resolve to {@code List&lt;TResult&gt;} when all the tasks are resolved.
    */
   public static <TResult> Task<List<TResult>> whenAllResult(final Collection<? extends Task<TResult>> tasks) {
-    return whenAll(tasks).onSuccess(new Continuation<Void, List<TResult>>() {
-      @Override
-      public List<TResult> then(Task<Void> task) throws Exception {
-        if (tasks.size() == 0) {
-          return Collections.emptyList();
-        }
+    if (tasks.size() == 0) {
+      return Task.forResult(Collections.<TResult>emptyList());
+    }
 
-        List<TResult> results = new ArrayList<>();
-        for (Task<TResult> individualTask : tasks) {
-          results.add(individualTask.getResult());
-        }
-        return results;
-      }
-    });
+    WhenAllResult<TResult> all = new WhenAllResult<>(tasks.size());
+    int index = 0;
+    for (Task<TResult> task : tasks) {
+      task.notifyWhenCompleted(new AggregateSlot(all, index++));
+    }
+    return all.task;
   }
 
   /**
@@ -523,50 +686,238 @@ public class Task<TResult> {
       return Task.forResult(null);
     }
 
-    final bolts.TaskCompletionSource<Void> allFinished = new bolts.TaskCompletionSource<>();
-    final ArrayList<Exception> causes = new ArrayList<>();
-    final Object errorLock = new Object();
-    final AtomicInteger count = new AtomicInteger(tasks.size());
-    final AtomicBoolean isCancelled = new AtomicBoolean(false);
-
+    WhenAll<Void> all = new WhenAll<>(tasks.size());
+    int index = 0;
     for (Task<?> task : tasks) {
-      @SuppressWarnings("unchecked")
-      Task<Object> t = (Task<Object>) task;
-      t.continueWith(new Continuation<Object, Void>() {
-        @Override
-        public Void then(Task<Object> task) {
-          if (task.isFaulted()) {
-            synchronized (errorLock) {
-              causes.add(task.getError());
-            }
-          }
+      task.notifyWhenCompleted(new AggregateSlot(all, index++));
+    }
+    return all.task;
+  }
 
-          if (task.isCancelled()) {
-            isCancelled.set(true);
-          }
+  /**
+   * Creates a task that completes when all of the provided tasks have completed successfully, or as
+   * soon as one of them faults or is cancelled.
+   * <p/>
+   * Unlike {@link #whenAll(Collection)}, the returned task does not wait for the remaining tasks
+   * once one of them has failed: it ends right away with the error of that task, or as cancelled,
+   * stops observing the tasks that are still pending and cancels the given
+   * {@link CancellationTokenSource}, whose token should be passed to the work behind the tasks so
+   * that it can stop early.
+   * <p/>
+   * If the supplied collection contains no tasks, the returned task will immediately transition
+   * to a completed state before it's returned to the caller.
+   *
+   * @param tasks The tasks that the return value will wait for before completing.
+   * @param cts The source to cancel once one of the tasks has failed, may be {@code null}.
+   * @return A Task that will resolve to {@code Void} when all the tasks have completed successfully.
+   */
+  public static Task<Void> whenAllFailFast(Collection<? extends Task<?>> tasks,
+      CancellationTokenSource cts) {
+    if (tasks.size() == 0) {
+      return Task.forResult(null);
+    }
 
-          if (count.decrementAndGet() == 0) {
-            if (causes.size() != 0) {
-              if (causes.size() == 1) {
-                allFinished.setError(causes.get(0));
-              } else {
-                Exception error = new AggregateException(
-                    String.format("There were %d exceptions.", causes.size()),
-                    causes);
-                allFinished.setError(error);
-              }
-            } else if (isCancelled.get()) {
-              allFinished.setCancelled();
-            } else {
-              allFinished.setResult(null);
-            }
-          }
-          return null;
-        }
-      });
+    Task<?>[] array = tasks.toArray(new Task<?>[tasks.size()]);
+    return registerUntilCompleted(new WhenAllFailFast(array, cts), array);
+  }
+
+  /**
+   * Creates a task that completes once {@code k} of the provided tasks have completed successfully.
+   * <p/>
+   * The result of the returned task is the list of the results of the first {@code k} tasks to
+   * complete successfully, in the order they completed. As soon as so many tasks have faulted or
+   * been cancelled that {@code k} successes are no longer possible, the returned task ends with the
+   * error of the failed task, an {@link AggregateException} of the errors if several tasks
+   * faulted, or as cancelled if none did. Either way the returned task then stops observing the
+   * remaining tasks.
+   *
+   * @param tasks The tasks that the return value will wait for.
+   * @param k The number of tasks that need to complete successfully, between 0 and the number of
+   *          tasks.
+   * @return A Task that will resolve to the results of the first {@code k} successful tasks.
+   */
+  public static <TResult> Task<List<TResult>> whenN(Collection<? extends Task<TResult>> tasks,
+      int k) {
+    return whenN(tasks, k, null);
+  }
+
+  /**
+   * Creates a task that completes once {@code k} of the provided tasks have completed successfully,
+   * then cancels the given {@link CancellationTokenSource}, see {@link #whenN(Collection, int)}.
+   * The source is cancelled as well once {@code k} successes are no longer possible.
+   *
+   * @param tasks The tasks that the return value will wait for.
+   * @param k The number of tasks that need to complete successfully, between 0 and the number of
+   *          tasks.
+   * @param cts The source to cancel once the returned task has completed, may be {@code null}.
+   * @return A Task that will resolve to the results of the first {@code k} successful tasks.
+   */
+  public static <TResult> Task<List<TResult>> whenN(Collection<? extends Task<TResult>> tasks,
+      int k, CancellationTokenSource cts) {
+    if (k < 0 || k > tasks.size()) {
+      throw new IllegalArgumentException("k must be between 0 and the number of tasks");
+    }
+    if (k == 0) {
+      return Task.forResult(Collections.<TResult>emptyList());
+    }
+
+    Task<?>[] array = tasks.toArray(new Task<?>[tasks.size()]);
+    return registerUntilCompleted(new WhenN<TResult>(array, k, cts), array);
+  }
+
+  /**
+   * Returns tasks that complete in the order the provided tasks complete, the way an
+   * {@link java.util.concurrent.ExecutorCompletionService} hands out finished work: the first
+   * returned task ends with the outcome of the first provided task to complete, the second one with
+   * that of the second provided task to complete, and so on. Continuations can be added to the
+   * returned tasks right away, so that the first outcomes can be processed while the other tasks are
+   * still running. The last returned task completes once all the provided tasks have completed.
+   *
+   * @param tasks The tasks to return in completion order.
+   * @return As many tasks as provided, completing in order.
+   */
+  public static <TResult> List<Task<TResult>> inCompletionOrder(
+      Collection<? extends Task<TResult>> tasks) {
+    InCompletionOrder<TResult> ordered = new InCompletionOrder<>(tasks.size());
+    int index = 0;
+    for (Task<TResult> task : tasks) {
+      task.notifyWhenCompleted(new AggregateSlot(ordered, index++));
+    }
+    return Collections.unmodifiableList(Arrays.asList(ordered.ordered));
+  }
+
+  /**
+   * Folds the results of the provided tasks as they complete, in no particular order, without
+   * keeping them: each result is passed to the accumulator along with the value accumulated so far,
+   * starting with the seed. The accumulator is never called concurrently, but it may be called on
+   * the thread of any of the tasks.
+   * <p/>
+   * As soon as one of the tasks faults or is cancelled, or the accumulator throws, the returned task
+   * ends the same way and the remaining results are not folded.
+   *
+   * @param tasks The tasks whose results are folded.
+   * @param seed The initial accumulated value.
+   * @param accumulator Folds one result into the accumulated value.
+   * @return A Task that will resolve to the accumulated value once all the results have been folded.
+   */
+  public static <TResult, TAccumulate> Task<TAccumulate> reduce(
+      Collection<? extends Task<TResult>> tasks, TAccumulate seed,
+      Accumulator<TAccumulate, ? super TResult> accumulator) {
+    return reduce(tasks, seed, accumulator, false);
+  }
+
+  /**
+   * Folds the results of the provided tasks in the order of the collection, each one as soon as it
+   * and the results before it are available, see
+   * {@link #reduce(Collection, Object, Accumulator)}.
+   *
+   * @param tasks The tasks whose results are folded.
+   * @param seed The initial accumulated value.
+   * @param accumulator Folds one result into the accumulated value.
+   * @return A Task that will resolve to the accumulated value once all the results have been folded.
+   */
+  public static <TResult, TAccumulate> Task<TAccumulate> reduceInOrder(
+      Collection<? extends Task<TResult>> tasks, TAccumulate seed,
+      Accumulator<TAccumulate, ? super TResult> accumulator) {
+    return reduce(tasks, seed, accumulator, true);
+  }
+
+  private static <TResult, TAccumulate> Task<TAccumulate> reduce(
+      Collection<? extends Task<TResult>> tasks, TAccumulate seed,
+      Accumulator<TAccumulate, ? super TResult> accumulator, boolean ordered) {
+    if (tasks.size() == 0) {
+      return Task.forResult(seed);
+    }
+
+    Task<?>[] array = tasks.toArray(new Task<?>[tasks.size()]);
+    return registerUntilCompleted(
+        new Reduce<TResult, TAccumulate>(array, seed, accumulator, ordered), array);
+  }
+
+  /**
+   * Creates a task that combines the results of two tasks once both have completed successfully.
+   * <p/>
+   * If either task faults, the returned task faults as well, with an {@link AggregateException} if
+   * both of them did, and if neither faulted but one was cancelled the returned task is cancelled,
+   * as with {@link #whenAll(Collection)}. Otherwise the combiner is called with both results, on the
+   * thread of the task that completed last, and its result is the result of the returned task.
+   *
+   * @param first The first task to combine.
+   * @param second The second task to combine.
+   * @param combiner Combines the results of the tasks.
+   * @return A Task that will resolve to the combined result of the tasks.
+   */
+  public static <T1, T2, TResult> Task<TResult> zip(Task<T1> first, Task<T2> second,
+      Combiner2<? super T1, ? super T2, ? extends TResult> combiner) {
+    Zip<T1, T2, Void, TResult> zip = new Zip<>(first, second, null, combiner, null);
+    zip.awaitNext();
+    return zip.task;
+  }
+
+  /**
+   * Creates a task that combines the results of three tasks once all of them have completed
+   * successfully, see {@link #zip(Task, Task, Combiner2)}.
+   *
+   * @param first The first task to combine.
+   * @param second The second task to combine.
+   * @param third The third task to combine.
+   * @param combiner Combines the results of the tasks.
+   * @return A Task that will resolve to the combined result of the tasks.
+   */
+  public static <T1, T2, T3, TResult> Task<TResult> zip(Task<T1> first, Task<T2> second,
+      Task<T3> third,
+      Combiner3<? super T1, ? super T2, ? super T3, ? extends TResult> combiner) {
+    Zip<T1, T2, T3, TResult> zip = new Zip<>(first, second, third, null, combiner);
+    zip.awaitNext();
+    return zip.task;
+  }
+
+  /**
+   * Creates a task that ends like this task, unless this task has not completed after a time delay,
+   * in which case the returned task faults with a {@link TimeoutException}. The timer is cancelled
+   * as soon as this task completes. Once timed out, the returned task stops observing this task, an
+   * error this task ends with afterwards is considered observed.
+   *
+   * @param delay The number of milliseconds to wait for this task. Zero and negative values time
+   *              out on the next tick of the timer, within about 10 milliseconds, unless this task
+   *              has completed by then.
+   */
+  public Task<TResult> withTimeout(long delay) {
+    return withTimeout(delay, null);
+  }
+
+  /**
+   * Creates a task that ends like this task, unless this task has not completed after a time delay,
+   * in which case the returned task faults with a {@link TimeoutException} and the source is
+   * cancelled so that the work this task is waiting for can stop. The timer is cancelled as soon as
+   * this task completes. Once timed out, the returned task stops observing this task, an error this
+   * task ends with afterwards is considered observed.
+   *
+   * @param delay The number of milliseconds to wait for this task. Zero and negative values time
+   *              out on the next tick of the timer, within about 10 milliseconds, unless this task
+   *              has completed by then.
+   * @param cts The source to cancel when the delay elapses, may be {@code null}.
+   */
+  public Task<TResult> withTimeout(long delay, CancellationTokenSource cts) {
+    return withTimeout(delay, cts, BoltsExecutors.timer());
+  }
+
+  /* package */ Task<TResult> withTimeout(long delay, CancellationTokenSource cts,
+      TimingWheel timer) {
+    if (isCompleted()) {
+      return this;
     }
 
-    return allFinished.getTask();
+    // Registered before the timer is started, so that a timeout always finds the node to detach.
+    WithTimeout<TResult> node = new WithTimeout<>(this, delay, cts);
+    notifyWhenCompleted(node);
+    TimingWheel.Timeout timeout = timer.schedule(node, delay, TimeUnit.MILLISECONDS);
+    node.timeout = timeout;
+    // This task may have completed before the timer could be seen by the node.
+    if (node.task.isCompleted()) {
+      timeout.cancel();
+    }
+    return node.task;
   }
 
   /**
@@ -603,23 +954,54 @@ public class Task<TResult> {
   public Task<Void> continueWhile(final Callable<Boolean> predicate,
       final Continuation<Void, Task<Void>> continuation, final Executor executor,
       final CancellationToken ct) {
-    final Capture<Continuation<Void, Task<Void>>> predicateContinuation =
-        new Capture<>();
-    predicateContinuation.set(new Continuation<Void, Task<Void>>() {
-      @Override
-      public Task<Void> then(Task<Void> task) throws Exception {
-        if (ct != null && ct.isCancellationRequested()) {
-          return Task.cancelled();
-        }
+    WhileLoop<Void> loop = new WhileLoop<>(predicate, null, continuation, executor, ct);
+    loop.state = Task.forResult(null);
+    notifyWhenCompleted(loop);
+    return loop.task;
+  }
 
-        if (predicate.call()) {
-          return Task.<Void> forResult(null).onSuccessTask(continuation, executor)
-              .onSuccessTask(predicateContinuation.get(), executor);
-        }
-        return Task.forResult(null);
-      }
-    });
-    return makeVoid().continueWithTask(predicateContinuation.get(), executor);
+  /**
+   * Continues a task with the equivalent of a Task-based while loop that threads a value through
+   * its iterations, such as the pages fetched so far. Starting with this task, the body is run
+   * with the task of the previous iteration for as long as the predicate returns {@code true} for
+   * it, and returns the task of the next iteration.
+   *
+   * @return A Task that ends with the result of the last iteration, or with the first error or
+   *         cancellation of this task or of an iteration.
+   */
+  public Task<TResult> continueWhile(Continuation<TResult, Boolean> predicate,
+      Continuation<TResult, Task<TResult>> body) {
+    return continueWhile(predicate, body, IMMEDIATE_EXECUTOR, null);
+  }
+
+  /**
+   * Continues a task with the equivalent of a Task-based while loop that threads a value through
+   * its iterations, see {@link #continueWhile(Continuation, Continuation)}.
+   */
+  public Task<TResult> continueWhile(Continuation<TResult, Boolean> predicate,
+      Continuation<TResult, Task<TResult>> body, CancellationToken ct) {
+    return continueWhile(predicate, body, IMMEDIATE_EXECUTOR, ct);
+  }
+
+  /**
+   * Continues a task with the equivalent of a Task-based while loop that threads a value through
+   * its iterations, see {@link #continueWhile(Continuation, Continuation)}.
+   */
+  public Task<TResult> continueWhile(Continuation<TResult, Boolean> predicate,
+      Continuation<TResult, Task<TResult>> body, Executor executor) {
+    return continueWhile(predicate, body, executor, null);
+  }
+
+  /**
+   * Continues a task with the equivalent of a Task-based while loop that threads a value through
+   * its iterations, see {@link #continueWhile(Continuation, Continuation)}.
+   */
+  public Task<TResult> continueWhile(Continuation<TResult, Boolean> predicate,
+      Continuation<TResult, Task<TResult>> body, Executor executor, CancellationToken ct) {
+    WhileLoop<TResult> loop = new WhileLoop<>(null, predicate, body, executor, ct);
+    loop.state = this;
+    notifyWhenCompleted(loop);
+    return loop.task;
   }
 
   /**
@@ -640,24 +1022,7 @@ public class Task<TResult> {
   public <TContinuationResult> Task<TContinuationResult> continueWith(
       final Continuation<TResult, TContinuationResult> continuation, final Executor executor,
       final CancellationToken ct) {
-    boolean completed;
-    final bolts.TaskCompletionSource<TContinuationResult> tcs = new bolts.TaskCompletionSource<>();
-    synchronized (lock) {
-      completed = this.isCompleted();
-      if (!completed) {
-        this.continuations.add(new Continuation<TResult, Void>() {
-          @Override
-          public Void then(Task<TResult> task) {
-            completeImmediately(tcs, continuation, task, executor, ct);
-            return null;
-          }
-        });
-      }
-    }
-    if (completed) {
-      completeImmediately(tcs, continuation, this, executor, ct);
-    }
-    return tcs.getTask();
+    return addContinuation(continuation, executor, ct, false, false);
   }
 
   /**
@@ -694,24 +1059,7 @@ public class Task<TResult> {
   public <TContinuationResult> Task<TContinuationResult> continueWithTask(
       final Continuation<TResult, Task<TContinuationResult>> continuation, final Executor executor,
       final CancellationToken ct) {
-    boolean completed;
-    final bolts.TaskCompletionSource<TContinuationResult> tcs = new bolts.TaskCompletionSource<>();
-    synchronized (lock) {
-      completed = this.isCompleted();
-      if (!completed) {
-        this.continuations.add(new Continuation<TResult, Void>() {
-          @Override
-          public Void then(Task<TResult> task) {
-            completeAfterTask(tcs, continuation, task, executor, ct);
-            return null;
-          }
-        });
-      }
-    }
-    if (completed) {
-      completeAfterTask(tcs, continuation, this, executor, ct);
-    }
-    return tcs.getTask();
+    return addContinuation(continuation, executor, ct, true, false);
   }
 
   /**
@@ -748,22 +1096,7 @@ public class Task<TResult> {
   public <TContinuationResult> Task<TContinuationResult> onSuccess(
       final Continuation<TResult, TContinuationResult> continuation, Executor executor,
       final CancellationToken ct) {
-    return continueWithTask(new Continuation<TResult, Task<TContinuationResult>>() {
-      @Override
-      public Task<TContinuationResult> then(Task<TResult> task) {
-        if (ct != null && ct.isCancellationRequested()) {
-          return Task.cancelled();
-        }
-
-        if (task.isFaulted()) {
-          return Task.forError(task.getError());
-        } else if (task.isCancelled()) {
-          return Task.cancelled();
-        } else {
-          return task.continueWith(continuation);
-        }
-      }
-    }, executor);
+    return addContinuation(continuation, executor, ct, false, true);
   }
 
   /**
@@ -800,23 +1133,8 @@ public class Task<TResult> {
   public <TContinuationResult> Task<TContinuationResult> onSuccessTask(
       final Continuation<TResult, Task<TContinuationResult>> continuation, Executor executor,
       final CancellationToken ct) {
-    return continueWithTask(new Continuation<TResult, Task<TContinuationResult>>() {
-      @Override
-      public Task<TContinuationResult> then(Task<TResult> task) {
-        if (ct != null && ct.isCancellationRequested()) {
-          return Task.cancelled();
-        }
-
-        if (task.isFaulted()) {
-          return Task.forError(task.getError());
-        } else if (task.isCancelled()) {
-          return Task.cancelled();
-        } else {
-          return task.continueWithTask(continuation);
-        }
-      }
-    }, executor);
-  }
+    return addContinuation(continuation, executor, ct, true, true);
+  }
 
   /**
    * Runs a continuation when a task completes successfully, forwarding along
@@ -838,177 +1156,1071 @@ public class Task<TResult> {
   }
 
   /**
-   * Handles the non-async (i.e. the continuation doesn't return a Task) continuation case, passing
-   * the results of the given Task through to the given continuation and using the results of that
-   * call to set the result of the TaskContinuationSource.
+   * Adds a continuation to this task, returning the task that will be completed with the outcome of
+   * the continuation.
+   *
+   * @param unwrap
+   *          Whether the continuation returns a Task whose outcome should be used rather than the
+   *          Task itself.
+   * @param onSuccess
+   *          Whether the continuation should only run if this task succeeds, the error or
+   *          cancellation of this task being forwarded otherwise.
+   */
+  private <TContinuationResult> Task<TContinuationResult> addContinuation(
+      Continuation<TResult, ?> continuation, Executor executor, CancellationToken ct,
+      boolean unwrap, boolean onSuccess) {
+    ContinuationTask<TResult, TContinuationResult> node =
+        new ContinuationTask<>(this, continuation, executor, ct, unwrap, onSuccess);
+    notifyWhenCompleted(node);
+    return node.task;
+  }
+
+  /**
+   * Notifies the node once this task completes, right away if it already has.
+   */
+  private void notifyWhenCompleted(ContinuationNode node) {
+    Task<TResult> task = root();
+    for (;;) {
+      if (task.outcome == null && task.pushContinuation(node)) {
+        return;
+      }
+      if (!(task.outcome instanceof Link)) {
+        node.onTaskCompleted(task);
+        return;
+      }
+      // The task has been linked in the meantime.
+      task = task.root();
+    }
+  }
+
+  /**
+   * Links this pending task to the given task so that both end with the same outcome, see
+   * {@link Link}.
+   *
+   * @return {@code false} if this task could not be linked because it has already been completed
+   *         or linked, or because it would be linked to itself.
+   */
+  private boolean linkTo(Task<TResult> task) {
+    Task<TResult> root = task.root();
+    if (root == this || !OUTCOME.compareAndSet(this, null, new Link(root))) {
+      return false;
+    }
+    notifyWaiters();
+
+    // Hands the continuations over to the root in the order they were added.
+    ContinuationNode head = takeContinuations();
+    ContinuationNode ordered = null;
+    while (head != null) {
+      ContinuationNode next = head.next;
+      head.next = ordered;
+      ordered = head;
+      head = next;
+    }
+    while (ordered != null) {
+      ContinuationNode node = ordered;
+      ordered = node.next;
+      node.next = null;
+      root.notifyWhenCompleted(node);
+    }
+    return true;
+  }
+
+  /**
+   * Pushes a node that will be notified once this task completes.
    *
-   * @param tcs
-   *          The TaskContinuationSource that will be orchestrated by this call.
-   * @param continuation
-   *          The non-async continuation.
-   * @param task
-   *          The task being completed.
-   * @param executor
-   *          The executor to use when running the continuation (allowing the continuation to be
-   *          scheduled on a different thread).
-   */
-  private static <TContinuationResult, TResult> void completeImmediately(
-      final bolts.TaskCompletionSource<TContinuationResult> tcs,
-      final Continuation<TResult, TContinuationResult> continuation, final Task<TResult> task,
-      Executor executor, final CancellationToken ct) {
+   * @return {@code false} if the continuations of this task have already been run or handed over
+   *         to the task it has been linked to.
+   */
+  private boolean pushContinuation(ContinuationNode node) {
+    for (;;) {
+      ContinuationNode head = continuations;
+      if (head == DRAINED) {
+        return false;
+      }
+      node.next = head;
+      if (CONTINUATIONS.compareAndSet(this, head, node)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Removes the detached nodes from the continuations of this task. They are unlinked in place:
+   * pushes only ever replace the head, and a completion that takes the stack waits for the sweep to
+   * end before it walks the nodes, see {@link #takeContinuations()}. Only one thread sweeps at a
+   * time, the others leave the detached nodes to it.
+   */
+  private void removeDetachedContinuations() {
+    if (!SWEEPING.compareAndSet(this, 0, 1)) {
+      return;
+    }
     try {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          if (ct != null && ct.isCancellationRequested()) {
-            tcs.setCancelled();
-            return;
-          }
+      ContinuationNode head = continuations;
+      while (head != null && head != DRAINED && head.isDetached()) {
+        if (CONTINUATIONS.compareAndSet(this, head, head.next)) {
+          head.next = null;
+        }
+        head = continuations;
+      }
+      if (head == null || head == DRAINED) {
+        return;
+      }
 
-          try {
-            TContinuationResult result = continuation.then(task);
-            tcs.setResult(result);
-          } catch (CancellationException e) {
-            tcs.setCancelled();
-          } catch (Exception e) {
-            tcs.setError(e);
-          }
+      // The nodes under the head are not touched by pushes, nor by a completion until we are done.
+      ContinuationNode previous = head;
+      ContinuationNode node = head.next;
+      while (node != null) {
+        ContinuationNode next = node.next;
+        if (node.isDetached()) {
+          previous.next = next;
+          node.next = null;
+        } else {
+          previous = node;
         }
-      });
-    } catch (Exception e) {
-      tcs.setError(new ExecutorException(e));
+        node = next;
+      }
+    } finally {
+      sweeping = 0;
     }
   }
 
   /**
-   * Handles the async (i.e. the continuation does return a Task) continuation case, passing the
-   * results of the given Task through to the given continuation to get a new Task. The
-   * TaskCompletionSource's results are only set when the new Task has completed, unwrapping the
-   * results of the task returned by the continuation.
-   *
-   * @param tcs
-   *          The TaskContinuationSource that will be orchestrated by this call.
-   * @param continuation
-   *          The async continuation.
-   * @param task
-   *          The task being completed.
-   * @param executor
-   *          The executor to use when running the continuation (allowing the continuation to be
-   *          scheduled on a different thread).
-   */
-  private static <TContinuationResult, TResult> void completeAfterTask(
-      final bolts.TaskCompletionSource<TContinuationResult> tcs,
-      final Continuation<TResult, Task<TContinuationResult>> continuation,
-      final Task<TResult> task, final Executor executor,
-      final CancellationToken ct) {
+   * Takes the continuations of this task for good, once a sweep that may still be unlinking some of
+   * them has ended.
+   */
+  private ContinuationNode takeContinuations() {
+    ContinuationNode head = CONTINUATIONS.getAndSet(this, DRAINED);
+    while (sweeping != 0) {
+      // A sweep only walks the stack, it ends shortly.
+      Thread.yield();
+    }
+    return head;
+  }
+
+  private void runContinuations() {
+    ContinuationNode head = takeContinuations();
+
+    // The stack holds the most recently added continuation first, reverse it so continuations run
+    // in the order they were added.
+    ContinuationNode ordered = null;
+    while (head != null) {
+      ContinuationNode next = head.next;
+      head.next = ordered;
+      ordered = head;
+      head = next;
+    }
+
+    while (ordered != null) {
+      ContinuationNode node = ordered;
+      ordered = node.next;
+      node.next = null;
+      node.onTaskCompleted(this);
+    }
+  }
+
+  /**
+   * Sets the cancelled flag on the Task if the Task hasn't already been completed.
+   */
+  /* package */ boolean trySetCancelled() {
+    return tryComplete(CANCELLED);
+  }
+
+  /**
+   * Sets the result on the Task if the Task hasn't already been completed.
+   */
+  /* package */ boolean trySetResult(TResult result) {
+    return tryComplete(result != null ? result : NULL_RESULT);
+  }
+
+  /**
+   * Sets the error on the Task if the Task hasn't already been completed.
+   */
+  /* package */ boolean trySetError(Exception error) {
+    return tryComplete(new Outcome(error));
+  }
+
+  /**
+   * Sets the outcome of the root of this task if it hasn't already been completed.
+   */
+  private boolean tryComplete(Object outcome) {
+    Task<TResult> task = root();
+    while (!OUTCOME.compareAndSet(task, null, outcome)) {
+      if (!(task.outcome instanceof Link)) {
+        return false;
+      }
+      task = task.root();
+    }
+
+    task.onCompleted();
+    if (outcome instanceof Outcome && ((Outcome) outcome).error != null) {
+      task.onFaulted();
+    }
+    return true;
+  }
+
+  /**
+   * Makes sure the unobserved exception handler is notified if nothing observes the error.
+   */
+  private void onFaulted() {
+    if (!errorHasBeenObserved && getUnobservedExceptionHandler() != null) {
+      UnobservedErrorNotifier notifier = new UnobservedErrorNotifier(this);
+      unobservedErrorNotifier = notifier;
+      // getError() may have run concurrently between the check above and the publication of the
+      // notifier, in which case it could not see the notifier to mark it.
+      if (errorHasBeenObserved) {
+        notifier.setObserved();
+        unobservedErrorNotifier = null;
+      }
+    }
+  }
+
+  private void notifyWaiters() {
+    // A waiter increments waiters before checking the outcome, and the outcome has been set before
+    // waiters is read here, so either the waiter sees the new outcome or it gets notified.
+    if (waiters > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wakes up the threads blocked in {@link #waitForCompletion()} and runs the continuations once
+   * the outcome of the task has been published. No lock is held while the continuations run, so a
+   * slow continuation never blocks other threads inspecting or continuing this task.
+   * <p/>
+   * Completing a task runs continuations which complete other tasks, so a long chain would recurse
+   * once per task. Past {@link #MAX_COMPLETION_DEPTH} nested completions the continuations are
+   * queued instead and run by the outermost completion on this thread, so chains of any length
+   * complete on the same thread with a bounded stack. A continuation that blocks in
+   * {@link #waitForCompletion()} runs the queued continuations first.
+   */
+  private void onCompleted() {
+    notifyWaiters();
+
+    CompletionQueue queue = COMPLETION_QUEUES.get();
+    if (queue.depth >= MAX_COMPLETION_DEPTH) {
+      queue.tasks.add(this);
+      return;
+    }
+
+    queue.depth++;
     try {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
+      runContinuations();
+      if (queue.depth == 1) {
+        Task<?> task;
+        while ((task = queue.tasks.poll()) != null) {
+          task.runContinuations();
+        }
+      }
+    } finally {
+      queue.depth--;
+    }
+  }
+
+  /**
+   * Runs the continuations this thread has deferred, see {@link #onCompleted()}. A thread must do
+   * so before it blocks, since the task it waits for may depend on them.
+   *
+   * @return {@code true} if any continuations have been run.
+   */
+  private static boolean runDeferredContinuations() {
+    CompletionQueue queue = COMPLETION_QUEUES.get();
+    if (queue.tasks.isEmpty()) {
+      return false;
+    }
+    Task<?> task;
+    while ((task = queue.tasks.poll()) != null) {
+      task.runContinuations();
+    }
+    return true;
+  }
+
+  /**
+   * Runs a continuation once a task completes and completes the task returned to the caller with
+   * its outcome.
+   * <p/>
+   * The same object is the node pushed on the continuation stack of the antecedent task, the
+   * {@link Runnable} handed to the executor and, when the continuation returns a Task, the node
+   * pushed on that Task to forward its outcome, so adding a continuation only allocates this object
+   * and the returned task.
+   */
+  private static final class ContinuationTask<TResult, TContinuationResult>
+      extends ContinuationNode implements Runnable {
+    private final Task<TContinuationResult> task = new Task<>();
+    private final Executor executor;
+    private final CancellationToken ct;
+    private final boolean unwrap;
+    private final boolean onSuccess;
+    private Continuation<TResult, ?> continuation;
+    // the task this continuation has been added to, which may have been linked since
+    private Task<TResult> antecedent;
+    // set once the continuation has returned the Task whose outcome is forwarded
+    private boolean forwarding;
+
+    private ContinuationTask(Task<TResult> antecedent, Continuation<TResult, ?> continuation,
+        Executor executor, CancellationToken ct, boolean unwrap, boolean onSuccess) {
+      this.antecedent = antecedent;
+      this.continuation = continuation;
+      this.executor = executor;
+      this.ct = ct;
+      this.unwrap = unwrap;
+      this.onSuccess = onSuccess;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void onTaskCompleted(Task<?> completed) {
+      if (forwarding) {
+        forward((Task<TContinuationResult>) completed);
+        return;
+      }
+
+      if (onSuccess) {
+        if (ct != null && ct.isCancellationRequested()) {
+          task.trySetCancelled();
+          return;
+        }
+        if (completed.isFaulted()) {
+          task.trySetError(completed.getError());
+          return;
+        }
+        if (completed.isCancelled()) {
+          task.trySetCancelled();
+          return;
+        }
+      }
+
+      try {
+        executor.execute(this);
+      } catch (Exception e) {
+        task.trySetError(new ExecutorException(e));
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+      if (ct != null && ct.isCancellationRequested()) {
+        task.trySetCancelled();
+        return;
+      }
+
+      try {
+        Object result = continuation.then(antecedent);
+        continuation = null;
+        antecedent = null;
+        if (!unwrap) {
+          task.trySetResult((TContinuationResult) result);
+        } else if (result == null) {
+          task.trySetResult(null);
+        } else {
+          Task<TContinuationResult> inner = (Task<TContinuationResult>) result;
+          // Without a cancellation token to check, the returned task can be merged with the task
+          // of this continuation so that long chains of returned tasks do not build up.
+          if (ct == null && inner.linkTo(task)) {
+            return;
+          }
+          forwarding = true;
+          inner.notifyWhenCompleted(this);
+        }
+      } catch (CancellationException e) {
+        task.trySetCancelled();
+      } catch (Exception e) {
+        task.trySetError(e);
+      }
+    }
+
+    private void forward(Task<TContinuationResult> inner) {
+      if (ct != null && ct.isCancellationRequested()) {
+        task.trySetCancelled();
+      } else if (inner.isCancelled()) {
+        task.trySetCancelled();
+      } else if (inner.isFaulted()) {
+        task.trySetError(inner.getError());
+      } else {
+        task.trySetResult(inner.getResult());
+      }
+    }
+  }
+
+  /**
+   * Runs the iterations of {@link #continueWhile}. Iterations whose body returns a completed task
+   * run one after the other without being dispatched again, and the loop only waits on, and is
+   * dispatched to its executor for, iterations that are still running. The loop is itself the
+   * node it waits with, so that waiting does not allocate.
+   */
+  private static final class WhileLoop<TResult> extends ContinuationNode implements Runnable {
+    private final Task<TResult> task = new Task<>();
+    // exactly one of condition (which ignores the value) and predicate is set
+    private final Callable<Boolean> condition;
+    private final Continuation<TResult, Boolean> predicate;
+    private final Continuation<TResult, Task<TResult>> body;
+    private final Executor executor;
+    private final CancellationToken ct;
+    // the task of the previous iteration, or the antecedent before the first one
+    private Task<TResult> state;
+    private boolean started;
+
+    private WhileLoop(Callable<Boolean> condition, Continuation<TResult, Boolean> predicate,
+        Continuation<TResult, Task<TResult>> body, Executor executor, CancellationToken ct) {
+      this.condition = condition;
+      this.predicate = predicate;
+      this.body = body;
+      this.executor = executor;
+      this.ct = ct;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> completed) {
+      // The loop without a value runs whatever the outcome of its antecedent.
+      if (started || predicate != null) {
+        if (completed.isFaulted()) {
+          task.trySetError(completed.getError());
+          return;
+        }
+        if (completed.isCancelled()) {
+          task.trySetCancelled();
+          return;
+        }
+      }
+
+      try {
+        executor.execute(this);
+      } catch (Exception e) {
+        task.trySetError(new ExecutorException(e));
+      }
+    }
+
+    @Override
+    public void run() {
+      started = true;
+      try {
+        for (;;) {
           if (ct != null && ct.isCancellationRequested()) {
-            tcs.setCancelled();
+            task.trySetCancelled();
+            return;
+          }
+          if (condition != null ? !condition.call() : !predicate.then(state)) {
+            task.trySetResult(state.getResult());
             return;
           }
 
-          try {
-            Task<TContinuationResult> result = continuation.then(task);
-            if (result == null) {
-              tcs.setResult(null);
-            } else {
-              result.continueWith(new Continuation<TContinuationResult, Void>() {
-                @Override
-                public Void then(Task<TContinuationResult> task) {
-                  if (ct != null && ct.isCancellationRequested()) {
-                    tcs.setCancelled();
-                    return null;
-                  }
-
-                  if (task.isCancelled()) {
-                    tcs.setCancelled();
-                  } else if (task.isFaulted()) {
-                    tcs.setError(task.getError());
-                  } else {
-                    tcs.setResult(task.getResult());
-                  }
-                  return null;
-                }
-              });
-            }
-          } catch (CancellationException e) {
-            tcs.setCancelled();
-          } catch (Exception e) {
-            tcs.setError(e);
+          Task<TResult> next = body.then(state);
+          if (next == null) {
+            next = Task.forResult(null);
+          }
+          if (predicate != null) {
+            state = next;
+          }
+          if (!next.isCompleted()) {
+            next.notifyWhenCompleted(this);
+            return;
+          }
+          if (next.isFaulted()) {
+            task.trySetError(next.getError());
+            return;
+          }
+          if (next.isCancelled()) {
+            task.trySetCancelled();
+            return;
           }
         }
-      });
-    } catch (Exception e) {
-      tcs.setError(new ExecutorException(e));
+      } catch (CancellationException e) {
+        task.trySetCancelled();
+      } catch (Exception e) {
+        task.trySetError(e);
+      }
     }
   }
 
-  private void runContinuations() {
-    synchronized (lock) {
-      for (Continuation<TResult, ?> continuation : continuations) {
-        try {
-          continuation.then(this);
-        } catch (RuntimeException e) {
-          throw e;
-        } catch (Exception e) {
-          throw new RuntimeException(e);
+  /**
+   * Combines the outcomes of several tasks into its own task. Every task is registered with its own
+   * {@link AggregateSlot}, which is detached once the aggregate has completed.
+   */
+  private abstract static class Aggregate<TResult> {
+    final Task<TResult> task = new Task<>();
+
+    /**
+     * Called with each task as it completes, along with its index in the aggregated tasks.
+     */
+    abstract void onTaskCompleted(Task<?> completed, int index);
+  }
+
+  /**
+   * Detaches the slots of a completed aggregate from those of its tasks that are still pending. Any
+   * error these tasks end with is considered observed, as it would have been by the aggregate.
+   */
+  private static void detach(Task<?>[] tasks) {
+    for (Task<?> task : tasks) {
+      if (task == null) {
+        continue;
+      }
+      Task<?> root = task.root();
+      root.errorHasBeenObserved = true;
+      if (root.isCompleted()) {
+        root.getError();
+      } else {
+        root.removeDetachedContinuations();
+      }
+    }
+  }
+
+  /**
+   * Registers the tasks with an aggregate that detaches from them once it has completed, which may
+   * happen before all of them have been registered.
+   */
+  private static <TResult> Task<TResult> registerUntilCompleted(Aggregate<TResult> aggregate,
+      Task<?>[] tasks) {
+    for (int i = 0; i < tasks.length && !aggregate.task.isCompleted(); i++) {
+      tasks[i].notifyWhenCompleted(new AggregateSlot(aggregate, i));
+    }
+    if (aggregate.task.isCompleted()) {
+      // Some slots may have been registered after the aggregate has completed.
+      detach(tasks);
+    }
+    return aggregate.task;
+  }
+
+  /**
+   * @return the only error stored by an aggregate, or an {@link AggregateException} of all of them
+   *         in the order of their tasks.
+   */
+  private static Exception combine(Exception[] errors) {
+    List<Exception> causes = new ArrayList<>();
+    for (Exception error : errors) {
+      if (error != null) {
+        causes.add(error);
+      }
+    }
+    if (causes.size() == 1) {
+      return causes.get(0);
+    }
+    return new AggregateException(
+        String.format("There were %d exceptions.", causes.size()), causes);
+  }
+
+  private static void cancel(CancellationTokenSource cts) {
+    if (cts != null) {
+      try {
+        cts.cancel();
+      } catch (IllegalStateException e) {
+        // The source has been closed, there is nothing left to cancel.
+      }
+    }
+  }
+
+  /**
+   * Aggregates the outcomes of the tasks of {@link #whenAll}. The outcomes are counted down without
+   * locking: an error is stored at the index of its task, in an array that is only created once a
+   * task has faulted, and the countdown publishes it to the thread completing the aggregate.
+   */
+  private static class WhenAll<TResult> extends Aggregate<TResult> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<WhenAll> PENDING =
+        AtomicIntegerFieldUpdater.newUpdater(WhenAll.class, "pending");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<WhenAll, Exception[]> ERRORS =
+        AtomicReferenceFieldUpdater.newUpdater(WhenAll.class, Exception[].class, "errors");
+
+    final int count;
+    private volatile int pending;
+    private volatile Exception[] errors;
+    private boolean cancelled;
+
+    WhenAll(int count) {
+      this.count = count;
+      pending = count;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> completed, int index) {
+      if (completed.isFaulted()) {
+        Exception[] errors = this.errors;
+        if (errors == null) {
+          ERRORS.compareAndSet(this, null, new Exception[count]);
+          errors = this.errors;
         }
+        errors[index] = completed.getError();
+      } else if (completed.isCancelled()) {
+        cancelled = true;
+      } else {
+        onResult(completed, index);
+      }
+
+      if (PENDING.decrementAndGet(this) == 0) {
+        complete();
+      }
+    }
+
+    private void complete() {
+      Exception[] errors = this.errors;
+      if (errors != null) {
+        task.trySetError(combine(errors));
+      } else if (cancelled) {
+        task.trySetCancelled();
+      } else {
+        task.trySetResult(result());
       }
-      continuations = null;
+    }
+
+    /**
+     * Called with each task that completed successfully, before it is counted down.
+     */
+    void onResult(Task<?> completed, int index) {
+    }
+
+    /**
+     * @return the result of the aggregate once all the tasks have completed successfully.
+     */
+    TResult result() {
+      return null;
     }
   }
 
   /**
-   * Sets the cancelled flag on the Task if the Task hasn't already been completed.
+   * Aggregates the tasks of {@link #whenAllResult}, storing each result at the index of its task
+   * as it completes.
    */
-  /* package */ boolean trySetCancelled() {
-    synchronized (lock) {
-      if (complete) {
-        return false;
+  private static final class WhenAllResult<TResult> extends WhenAll<List<TResult>> {
+    private final Object[] results;
+
+    private WhenAllResult(int count) {
+      super(count);
+      results = new Object[count];
+    }
+
+    @Override
+    void onResult(Task<?> completed, int index) {
+      results[index] = completed.getResult();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    List<TResult> result() {
+      return Collections.unmodifiableList(Arrays.asList((TResult[]) results));
+    }
+  }
+
+  /**
+   * Aggregates the tasks of {@link #whenAllFailFast}: the first task to fault or to be cancelled
+   * completes the aggregate, which then detaches its slots from the tasks still pending and cancels
+   * the shared {@link CancellationTokenSource}.
+   */
+  private static final class WhenAllFailFast extends WhenAll<Void> {
+    private final Task<?>[] tasks;
+    private final CancellationTokenSource cts;
+
+    private WhenAllFailFast(Task<?>[] tasks, CancellationTokenSource cts) {
+      super(tasks.length);
+      this.tasks = tasks;
+      this.cts = cts;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> completed, int index) {
+      if (completed.isFaulted()) {
+        if (task.trySetError(completed.getError())) {
+          onFailed();
+        }
+      } else if (completed.isCancelled()) {
+        if (task.trySetCancelled()) {
+          onFailed();
+        }
+      } else {
+        super.onTaskCompleted(completed, index);
       }
-      complete = true;
-      cancelled = true;
-      lock.notifyAll();
-      runContinuations();
-      return true;
+    }
+
+    private void onFailed() {
+      detach(tasks);
+      cancel(cts);
     }
   }
 
   /**
-   * Sets the result on the Task if the Task hasn't already been completed.
+   * Aggregates the tasks of {@link #whenAnyResult}: the first task to complete completes the
+   * aggregate, which then detaches its slots from the other tasks and cancels the
+   * {@link CancellationTokenSource} it may have been given.
    */
-  /* package */ boolean trySetResult(TResult result) {
-    synchronized (lock) {
-      if (complete) {
-        return false;
+  private static final class WhenAny<TResult> extends Aggregate<Task<TResult>> {
+    private final Task<?>[] tasks;
+    private final CancellationTokenSource cts;
+
+    private WhenAny(Task<?>[] tasks, CancellationTokenSource cts) {
+      this.tasks = tasks;
+      this.cts = cts;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void onTaskCompleted(Task<?> completed, int index) {
+      // The slot is notified with the root of the task, the task itself is the result.
+      if (task.trySetResult((Task<TResult>) tasks[index])) {
+        detach(tasks);
+        cancel(cts);
+      } else {
+        completed.getError();
       }
-      complete = true;
-      Task.this.result = result;
-      lock.notifyAll();
-      runContinuations();
-      return true;
     }
   }
 
   /**
-   * Sets the error on the Task if the Task hasn't already been completed.
+   * Aggregates the tasks of {@link #whenN}. A successful task claims the next result slot, and the
+   * task that fills the last of the {@code k} slots completes the aggregate; failures are counted
+   * down the same way, and errors stored by task index as in {@link WhenAll}.
    */
-  /* package */ boolean trySetError(Exception error) {
-    synchronized (lock) {
-      if (complete) {
-        return false;
+  private static final class WhenN<TResult> extends Aggregate<List<TResult>> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<WhenN> CLAIMED =
+        AtomicIntegerFieldUpdater.newUpdater(WhenN.class, "claimed");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<WhenN> FILLED =
+        AtomicIntegerFieldUpdater.newUpdater(WhenN.class, "filled");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<WhenN> FAILED =
+        AtomicIntegerFieldUpdater.newUpdater(WhenN.class, "failed");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<WhenN, Exception[]> ERRORS =
+        AtomicReferenceFieldUpdater.newUpdater(WhenN.class, Exception[].class, "errors");
+
+    private final Task<?>[] tasks;
+    private final CancellationTokenSource cts;
+    private final Object[] results;
+    private volatile int claimed;
+    private volatile int filled;
+    private volatile int failed;
+    private volatile Exception[] errors;
+
+    private WhenN(Task<?>[] tasks, int k, CancellationTokenSource cts) {
+      this.tasks = tasks;
+      this.cts = cts;
+      results = new Object[k];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void onTaskCompleted(Task<?> completed, int index) {
+      if (completed.isFaulted() || completed.isCancelled()) {
+        onFailure(completed, index);
+        return;
       }
-      complete = true;
-      Task.this.error = error;
-      errorHasBeenObserved = false;
-      lock.notifyAll();
-      runContinuations();
-      if (!errorHasBeenObserved && getUnobservedExceptionHandler() != null)
-        unobservedErrorNotifier = new UnobservedErrorNotifier(this);
-      return true;
+
+      int slot = CLAIMED.getAndIncrement(this);
+      if (slot >= results.length) {
+        return;
+      }
+      results[slot] = completed.getResult();
+      // Slots are claimed in completion order but may be filled in any order, so the aggregate is
+      // completed once they have all been filled rather than when the last one is claimed.
+      if (FILLED.incrementAndGet(this) == results.length
+          && task.trySetResult(Collections.unmodifiableList(Arrays.asList((TResult[]) results)))) {
+        onCompleted();
+      }
+    }
+
+    private void onFailure(Task<?> completed, int index) {
+      if (completed.isFaulted()) {
+        Exception[] errors = this.errors;
+        if (errors == null) {
+          ERRORS.compareAndSet(this, null, new Exception[tasks.length]);
+          errors = this.errors;
+        }
+        errors[index] = completed.getError();
+      }
+      if (FAILED.incrementAndGet(this) != tasks.length - results.length + 1) {
+        return;
+      }
+
+      Exception[] errors = this.errors;
+      if (errors != null ? task.trySetError(combine(errors)) : task.trySetCancelled()) {
+        onCompleted();
+      }
+    }
+
+    private void onCompleted() {
+      detach(tasks);
+      cancel(cts);
+    }
+  }
+
+  /**
+   * Hands out the outcomes of the tasks of {@link #inCompletionOrder}: every task that completes
+   * claims the next of the returned tasks and completes it with its own outcome. The task of the
+   * aggregate is the last of them.
+   */
+  private static final class InCompletionOrder<TResult> extends Aggregate<TResult> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<InCompletionOrder> CLAIMED =
+        AtomicIntegerFieldUpdater.newUpdater(InCompletionOrder.class, "claimed");
+
+    private final Task<TResult>[] ordered;
+    private volatile int claimed;
+
+    @SuppressWarnings("unchecked")
+    private InCompletionOrder(int count) {
+      ordered = (Task<TResult>[]) new Task<?>[count];
+      for (int i = 0; i < count - 1; i++) {
+        ordered[i] = new Task<>();
+      }
+      if (count > 0) {
+        ordered[count - 1] = task;
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void onTaskCompleted(Task<?> completed, int index) {
+      Task<TResult> next = ordered[CLAIMED.getAndIncrement(this)];
+      if (completed.isFaulted()) {
+        next.trySetError(completed.getError());
+      } else if (completed.isCancelled()) {
+        next.trySetCancelled();
+      } else {
+        next.trySetResult((TResult) completed.getResult());
+      }
+    }
+  }
+
+  /**
+   * Folds the results of the tasks of {@link #reduce} as they complete. Only one thread folds at a
+   * time: a thread whose task completes while another one is folding leaves its task to that
+   * thread, which keeps folding until no task is left. Folded tasks are released, so only the
+   * accumulated value and the results that have not been folded yet are kept.
+   */
+  private static final class Reduce<TResult, TAccumulate> extends Aggregate<TAccumulate> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Reduce> WIP =
+        AtomicIntegerFieldUpdater.newUpdater(Reduce.class, "wip");
+
+    private final Task<?>[] tasks;
+    private final Accumulator<TAccumulate, ? super TResult> accumulator;
+    private final boolean ordered;
+    // completed tasks left to fold, in completion order, unless the results are folded in order
+    private final ConcurrentLinkedQueue<Task<?>> completed;
+    // number of threads that have completed a task since the folding thread last checked
+    private volatile int wip;
+    // only accessed by the folding thread
+    private TAccumulate accumulated;
+    private int folded;
+
+    private Reduce(Task<?>[] tasks, TAccumulate seed,
+        Accumulator<TAccumulate, ? super TResult> accumulator, boolean ordered) {
+      // A copy, the tasks may be folded and released while they are still being registered.
+      this.tasks = tasks.clone();
+      this.accumulator = accumulator;
+      this.ordered = ordered;
+      completed = ordered ? null : new ConcurrentLinkedQueue<Task<?>>();
+      accumulated = seed;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> completed, int index) {
+      if (completed.isFaulted() || completed.isCancelled()) {
+        fail(completed);
+        return;
+      }
+      if (!ordered) {
+        tasks[index] = null;
+        this.completed.offer(completed);
+      }
+
+      if (WIP.getAndIncrement(this) != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        fold();
+        missed = WIP.addAndGet(this, -missed);
+      } while (missed != 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fold() {
+      try {
+        while (!task.isCompleted()) {
+          Task<?> next;
+          if (ordered) {
+            next = tasks[folded];
+            if (!next.isCompleted()) {
+              return;
+            }
+            if (next.isFaulted() || next.isCancelled()) {
+              fail(next);
+              return;
+            }
+            tasks[folded] = null;
+          } else {
+            next = completed.poll();
+            if (next == null) {
+              return;
+            }
+          }
+
+          accumulated = accumulator.accumulate(accumulated, (TResult) next.getResult());
+          if (++folded == tasks.length) {
+            task.trySetResult(accumulated);
+            accumulated = null;
+            return;
+          }
+        }
+      } catch (CancellationException e) {
+        if (task.trySetCancelled()) {
+          detach(tasks);
+        }
+      } catch (Exception e) {
+        if (task.trySetError(e)) {
+          detach(tasks);
+        }
+      }
+    }
+
+    private void fail(Task<?> failed) {
+      if (failed.isFaulted() ? task.trySetError(failed.getError()) : task.trySetCancelled()) {
+        detach(tasks);
+      }
+    }
+  }
+
+  /**
+   * Joins the tasks of {@link #zip}. Since the combined task needs all of them, the tasks are waited
+   * for one after the other, so that this single node is all it takes to wait for them.
+   */
+  private static final class Zip<T1, T2, T3, TResult> extends ContinuationNode {
+    private final Task<TResult> task = new Task<>();
+    private final Task<T1> first;
+    private final Task<T2> second;
+    // null when only two tasks are combined
+    private final Task<T3> third;
+    private final Combiner2<? super T1, ? super T2, ? extends TResult> combiner2;
+    private final Combiner3<? super T1, ? super T2, ? super T3, ? extends TResult> combiner3;
+    // the index of the task waited for
+    private int waiting;
+
+    private Zip(Task<T1> first, Task<T2> second, Task<T3> third,
+        Combiner2<? super T1, ? super T2, ? extends TResult> combiner2,
+        Combiner3<? super T1, ? super T2, ? super T3, ? extends TResult> combiner3) {
+      this.first = first;
+      this.second = second;
+      this.third = third;
+      this.combiner2 = combiner2;
+      this.combiner3 = combiner3;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> completed) {
+      awaitNext();
+    }
+
+    private void awaitNext() {
+      for (;;) {
+        Task<?> next = waiting == 0 ? first : waiting == 1 ? second : waiting == 2 ? third : null;
+        if (next == null) {
+          complete();
+          return;
+        }
+        if (!next.isCompleted()) {
+          next.notifyWhenCompleted(this);
+          return;
+        }
+        waiting++;
+      }
+    }
+
+    private void complete() {
+      Exception firstError = first.getError();
+      Exception secondError = second.getError();
+      Exception thirdError = third != null ? third.getError() : null;
+      if (firstError != null || secondError != null || thirdError != null) {
+        task.trySetError(combine(new Exception[] { firstError, secondError, thirdError }));
+        return;
+      }
+      if (first.isCancelled() || second.isCancelled() || (third != null && third.isCancelled())) {
+        task.trySetCancelled();
+        return;
+      }
+
+      try {
+        task.trySetResult(third == null
+            ? combiner2.combine(first.getResult(), second.getResult())
+            : combiner3.combine(first.getResult(), second.getResult(), third.getResult()));
+      } catch (CancellationException e) {
+        task.trySetCancelled();
+      } catch (Exception e) {
+        task.trySetError(e);
+      }
+    }
+  }
+
+  /**
+   * Ends its task like the source task, unless the timeout it has been scheduled with expires
+   * first. It then detaches from the source like an aggregate would, so an error the source ends
+   * with afterwards is considered observed.
+   */
+  private static final class WithTimeout<TResult> extends ContinuationNode implements Runnable {
+    private final Task<TResult> task = new Task<>();
+    private final Task<TResult> source;
+    private final long delay;
+    private final CancellationTokenSource cts;
+    private volatile TimingWheel.Timeout timeout;
+
+    private WithTimeout(Task<TResult> source, long delay, CancellationTokenSource cts) {
+      this.source = source;
+      this.delay = delay;
+      this.cts = cts;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> completed) {
+      if (source.isFaulted()) {
+        task.trySetError(source.getError());
+      } else if (source.isCancelled()) {
+        task.trySetCancelled();
+      } else {
+        task.trySetResult(source.getResult());
+      }
+      // Read once the task has completed, a timer that is not set yet gets cancelled by withTimeout.
+      TimingWheel.Timeout timeout = this.timeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (task.trySetError(new TimeoutException(
+          String.format("The task did not complete within %d ms.", delay)))) {
+        detach(new Task<?>[] { source });
+        cancel(cts);
+      }
+    }
+
+    @Override
+    boolean isDetached() {
+      return task.isCompleted();
+    }
+  }
+
+  /**
+   * Registers one task with its aggregate.
+   */
+  private static final class AggregateSlot extends ContinuationNode {
+    private final Aggregate<?> all;
+    private final int index;
+
+    private AggregateSlot(Aggregate<?> all, int index) {
+      this.all = all;
+      this.index = index;
+    }
+
+    @Override
+    void onTaskCompleted(Task<?> task) {
+      all.onTaskCompleted(task, index);
+    }
+
+    @Override
+    boolean isDetached() {
+      return all.task.isCompleted();
     }
   }
 
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the child tasks started through it so that they can be abandoned together: closing the scope
+ * cancels the children that are still running, and by default so does the first child to fault.
+ * The children are cancelled through the token of the scope, which they are started with.
+ * <p/>
+ * The task of the scope completes once the scope has been joined or closed, and all of its
+ * children have completed. It ends with the error of the first child to fault, as cancelled if no
+ * child faulted but one was cancelled, and with a {@code null} result otherwise.
+ */
+public class TaskScope implements Closeable {
+
+  private final Object lock = new Object();
+  private final CancellationTokenSource cts = new CancellationTokenSource();
+  private final CancellationToken token = cts.getToken();
+  private final TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
+  private final boolean cancelOnFailure;
+  // the children still running, plus one until the scope is joined or closed
+  private int pending = 1;
+  private boolean closed;
+  private Exception error;
+  private boolean cancelled;
+
+  /**
+   * Creates a scope whose children are all cancelled once one of them faults.
+   */
+  public TaskScope() {
+    this(true);
+  }
+
+  /**
+   * Creates a scope.
+   *
+   * @param cancelOnFailure Whether all the children are cancelled once one of them faults.
+   */
+  public TaskScope(boolean cancelOnFailure) {
+    this.cancelOnFailure = cancelOnFailure;
+  }
+
+  /**
+   * @return the token the children of this scope should be started with, it is cancelled when they
+   *         are.
+   */
+  public CancellationToken getToken() {
+    return token;
+  }
+
+  /**
+   * @return the Task that completes once this scope has been joined or closed, and all of its
+   *         children have completed.
+   */
+  public Task<Void> getTask() {
+    return tcs.getTask();
+  }
+
+  /**
+   * Invokes the callable in the background as a child of this scope.
+   *
+   * @throws IllegalStateException if the scope has been joined or closed.
+   */
+  public <TResult> Task<TResult> callInBackground(Callable<TResult> callable) {
+    return call(callable, Task.BACKGROUND_EXECUTOR);
+  }
+
+  /**
+   * Invokes the callable using the given executor as a child of this scope.
+   *
+   * @throws IllegalStateException if the scope has been joined or closed.
+   */
+  public <TResult> Task<TResult> call(Callable<TResult> callable, Executor executor) {
+    synchronized (lock) {
+      throwIfClosed();
+      pending++;
+    }
+    return watch(Task.call(callable, executor, token));
+  }
+
+  /**
+   * Adds a task that has been started with the token of this scope as a child of this scope.
+   *
+   * @throws IllegalStateException if the scope has been joined or closed.
+   */
+  public <TResult> Task<TResult> add(Task<TResult> task) {
+    synchronized (lock) {
+      throwIfClosed();
+      pending++;
+    }
+    return watch(task);
+  }
+
+  /**
+   * Stops accepting children and waits for the ones that have been started.
+   *
+   * @return the task of this scope.
+   */
+  public Task<Void> join() {
+    seal();
+    return tcs.getTask();
+  }
+
+  /**
+   * Closes this scope, cancelling the children that are still running. No more children can be
+   * added once the scope has been closed.
+   */
+  @Override
+  public void close() {
+    seal();
+    cts.cancel();
+  }
+
+  private void seal() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    onChildCompleted(null);
+  }
+
+  private <TResult> Task<TResult> watch(Task<TResult> task) {
+    task.continueWith(new Continuation<TResult, Void>() {
+      @Override
+      public Void then(Task<TResult> task) {
+        onChildCompleted(task);
+        return null;
+      }
+    });
+    return task;
+  }
+
+  private void onChildCompleted(Task<?> child) {
+    boolean failed = false;
+    boolean completed;
+    synchronized (lock) {
+      if (child != null && child.isFaulted()) {
+        Exception childError = child.getError();
+        if (error == null) {
+          error = childError;
+          failed = true;
+        }
+      } else if (child != null && child.isCancelled()) {
+        cancelled = true;
+      }
+      completed = --pending == 0;
+    }
+
+    if (failed && cancelOnFailure) {
+      cts.cancel();
+    }
+    if (completed) {
+      // Releases the registrations the children made on the token, none of them needs it anymore.
+      // The source stays open, the token may still be used once the scope has completed.
+      cts.releaseRegistrations();
+      if (error != null) {
+        tcs.setError(error);
+      } else if (cancelled) {
+        tcs.setCancelled();
+      } else {
+        tcs.setResult(null);
+      }
+    }
+  }
+
+  // Should only be called while holding the lock.
+  private void throwIfClosed() {
+    if (closed) {
+      throw new IllegalStateException("Scope already closed");
+    }
+  }
+}
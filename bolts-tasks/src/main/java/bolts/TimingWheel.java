@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A hashed timing wheel that runs tasks after a delay, for timeouts that are scheduled in large
+ * numbers and mostly cancelled before they expire. Scheduling and cancelling are O(1), unlike with
+ * the heap of a {@link java.util.concurrent.ScheduledExecutorService}, and a cancelled timeout is
+ * unlinked from its bucket on the next tick rather than when its delay would have elapsed.
+ * <p/>
+ * Timeouts are only checked once per tick, so a task runs up to one tick after its delay has
+ * elapsed, never before. Tasks are run on the single thread of the wheel, they should be short.
+ * The thread is started with the first timeout and waits without ticking while there are none. A
+ * task that throws does not stop the others, an {@link Error} is passed to the uncaught exception
+ * handler of the thread.
+ */
+/* package */ final class TimingWheel {
+
+  // The maximum number of new timeouts moved into the wheel per tick, so that a burst of them
+  // cannot delay the expiration of the others indefinitely.
+  private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+  private static final AtomicIntegerFieldUpdater<TimingWheel> STARTED =
+      AtomicIntegerFieldUpdater.newUpdater(TimingWheel.class, "started");
+  private static final AtomicIntegerFieldUpdater<TimingWheel> PENDING =
+      AtomicIntegerFieldUpdater.newUpdater(TimingWheel.class, "pending");
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startTime = System.nanoTime();
+  // Timeouts are handed over to the thread of the wheel, which is the only one to touch the buckets.
+  private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+  private final Object idleLock = new Object();
+  private final Thread worker;
+  private volatile int started;
+  private volatile boolean stopped;
+  // the number of timeouts that have been scheduled and have neither expired nor been cancelled
+  private volatile int pending;
+  // only accessed by the worker thread
+  private long tick;
+
+  /**
+   * Creates a timing wheel.
+   *
+   * @param tickDuration The resolution of the wheel, timeouts are checked once per tick.
+   * @param unit The unit of {@code tickDuration}.
+   * @param ticksPerWheel The number of buckets of the wheel, rounded up to a power of two. Timeouts
+   *                      further away than a full turn of the wheel are only checked once per turn
+   *                      until they are due.
+   */
+  /* package */ TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("tickDuration must be > 0");
+    }
+    if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+      throw new IllegalArgumentException("ticksPerWheel must be in (0, 2^30]");
+    }
+    tickNanos = unit.toNanos(tickDuration);
+    int size = Integer.highestOneBit(ticksPerWheel);
+    if (size < ticksPerWheel) {
+      size <<= 1;
+    }
+    wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    mask = size - 1;
+
+    worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runWorker();
+      }
+    }, "bolts-timer");
+    worker.setDaemon(true);
+  }
+
+  /**
+   * Schedules a task to run once the delay has elapsed.
+   *
+   * @return the timeout of the task, that can be used to cancel it.
+   */
+  /* package */ Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (STARTED.get(this) == 0 && STARTED.compareAndSet(this, 0, 1)) {
+      worker.start();
+    }
+
+    long now = System.nanoTime() - startTime;
+    long delayNanos = unit.toNanos(Math.max(delay, 0));
+    // Saturated, a timeout that far away never expires rather than overflowing into the past.
+    long deadline = delayNanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delayNanos;
+    Timeout timeout = new Timeout(this, task, deadline);
+    // Counted before it can be seen by the worker thread, which only idles with no timeout pending.
+    boolean idle = PENDING.getAndIncrement(this) == 0;
+    scheduled.add(timeout);
+    if (idle) {
+      synchronized (idleLock) {
+        idleLock.notifyAll();
+      }
+    }
+    return timeout;
+  }
+
+  /**
+   * Stops the thread of the wheel, the timeouts that are still pending never run. The shared wheel
+   * runs for as long as the process does, this is for the wheels created on their own.
+   */
+  /* package */ void stop() {
+    stopped = true;
+    // A wheel that has not been started never will be.
+    if (STARTED.getAndSet(this, 1) == 1) {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * @return the number of timeouts that have neither expired nor been cancelled yet.
+   */
+  /* package */ int pendingTimeouts() {
+    return pending;
+  }
+
+  private void runWorker() {
+    while (!stopped) {
+      long now = awaitNextTick();
+      if (now < 0) {
+        return;
+      }
+      removeCancelled();
+      transferScheduled();
+      wheel[(int) (tick & mask)].expire(now);
+      tick++;
+    }
+  }
+
+  /**
+   * Waits for the current tick to end, or for a timeout to be scheduled if there are none.
+   *
+   * @return the time elapsed since the wheel was created, or -1 if the thread was interrupted.
+   */
+  private long awaitNextTick() {
+    try {
+      if (pending == 0) {
+        // Nothing can expire until a timeout is scheduled, stop ticking in the meantime. A timeout
+        // scheduled from now on is only moved into the wheel once the ticks missed while idle have
+        // been skipped, its bucket would be a turn late otherwise.
+        removeCancelled();
+        synchronized (idleLock) {
+          while (pending == 0) {
+            idleLock.wait();
+          }
+        }
+        // Every timeout in the wheel has been cancelled while it was idle, skip the ticks missed.
+        tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+      }
+
+      long deadline = tickNanos * (tick + 1);
+      for (;;) {
+        long now = System.nanoTime() - startTime;
+        long sleepMillis = (deadline - now + 999999) / 1000000;
+        if (sleepMillis <= 0) {
+          return now;
+        }
+        Thread.sleep(sleepMillis);
+      }
+    } catch (InterruptedException e) {
+      return -1;
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  private void transferScheduled() {
+    for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+      Timeout timeout = scheduled.poll();
+      if (timeout == null) {
+        return;
+      }
+      if (timeout.state != Timeout.WAITING) {
+        continue;
+      }
+
+      long expiresAt = timeout.deadline / tickNanos;
+      timeout.remainingRounds = (expiresAt - tick) / wheel.length;
+      // A timeout that is already due expires on this tick.
+      wheel[(int) (Math.max(expiresAt, tick) & mask)].add(timeout);
+    }
+  }
+
+  /**
+   * A task scheduled on a {@link TimingWheel}.
+   */
+  /* package */ static final class Timeout {
+
+    private static final int WAITING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    private final TimingWheel timer;
+    private final long deadline;
+    private Runnable task;
+    private volatile int state;
+    // only accessed by the worker thread
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout next;
+    private Timeout prev;
+
+    private Timeout(TimingWheel timer, Runnable task, long deadline) {
+      this.timer = timer;
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the task unless it has already been run.
+     *
+     * @return {@code true} if the task has been cancelled, {@code false} if it has been run or
+     *         cancelled before.
+     */
+    /* package */ boolean cancel() {
+      if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+        return false;
+      }
+      task = null;
+      PENDING.decrementAndGet(timer);
+      // Unlinked by the worker thread on its next tick.
+      timer.cancelled.add(this);
+      return true;
+    }
+
+    /* package */ boolean isCancelled() {
+      return state == CANCELLED;
+    }
+
+    /* package */ boolean isExpired() {
+      return state == EXPIRED;
+    }
+
+    private void expire() {
+      if (!STATE.compareAndSet(this, WAITING, EXPIRED)) {
+        return;
+      }
+      Runnable task = this.task;
+      this.task = null;
+      PENDING.decrementAndGet(timer);
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // The task is the one to handle its errors, they must not stop the other timeouts.
+      } catch (Error e) {
+        // Reported as if it had not been caught, but the thread keeps running the other timeouts.
+        Thread thread = Thread.currentThread();
+        try {
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        } catch (Throwable t) {
+          // The handler failed as well, there is no one else to report to.
+        }
+      }
+    }
+  }
+
+  /**
+   * A doubly linked list of the timeouts that fall on the same tick of the wheel, modulo its size.
+   */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    private void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    private void remove(Timeout timeout) {
+      Timeout next = timeout.next;
+      if (timeout.prev != null) {
+        timeout.prev.next = next;
+      }
+      if (next != null) {
+        next.prev = timeout.prev;
+      }
+      if (timeout == head) {
+        head = next;
+      }
+      if (timeout == tail) {
+        tail = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+
+    // Runs the timeouts that are due and counts down the rounds of the others.
+    private void expire(long now) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.state != Timeout.WAITING) {
+          remove(timeout);
+        } else if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+          remove(timeout);
+          timeout.expire();
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+  }
+}
@@ -8,8 +8,15 @@ package bolts;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -83,6 +90,22 @@ public class CancellationTest {
     assertFalse(cts.isCancellationRequested());
   }
 
+  @Test
+  public void testTokenIsNotCancelledAfterLongDelay() throws Exception {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+
+    cts.cancelAfter(Long.MAX_VALUE / 2);
+    Task<Void> delay = Task.delay(Long.MAX_VALUE, token);
+
+    Thread.sleep(100);
+
+    assertFalse(token.isCancellationRequested());
+    assertFalse(delay.isCompleted());
+    cts.cancel();
+    assertTrue(delay.isCancelled());
+  }
+
   @Test
   public void testTokenThrowsWhenCancelled() {
     CancellationTokenSource cts = new CancellationTokenSource();
@@ -185,4 +208,351 @@ public class CancellationTest {
 
     cts.close();
   }
+
+  @Test
+  public void testTokenCallsRemainingActionsInOrder() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    CancellationToken token = cts.getToken();
+    final List<Integer> calls = new ArrayList<>();
+    List<CancellationTokenRegistration> registrations = new ArrayList<>();
+
+    for (int i = 0; i < 1000; i++) {
+      final int index = i;
+      registrations.add(token.register(new Runnable() {
+        @Override
+        public void run() {
+          calls.add(index);
+        }
+      }));
+    }
+    // Enough to have the closed registrations swept a few times.
+    for (int i = 0; i < 1000; i++) {
+      if (i % 10 != 0) {
+        registrations.get(i).close();
+      }
+    }
+
+    cts.cancel();
+    cts.cancel();
+
+    assertEquals(100, calls.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i * 10, calls.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testSweepingKeepsRegistrationOrder() throws Exception {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    final CancellationToken token = cts.getToken();
+    final int threads = 4;
+    final int count = 20000;
+    final List<List<Integer>> calls = new ArrayList<>();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> registrars = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      final List<Integer> threadCalls = new ArrayList<>();
+      calls.add(threadCalls);
+      Thread registrar = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < count; i++) {
+            final int index = i;
+            token.register(new Runnable() {
+              @Override
+              public void run() {
+                threadCalls.add(index);
+              }
+            });
+            // Sweeps the stack while the other thread registers.
+            token.register(new Runnable() {
+              @Override
+              public void run() {
+              }
+            }).close();
+          }
+        }
+      });
+      registrar.start();
+      registrars.add(registrar);
+    }
+    start.countDown();
+    for (Thread registrar : registrars) {
+      registrar.join();
+    }
+
+    cts.cancel();
+    for (List<Integer> threadCalls : calls) {
+      assertEquals(count, threadCalls.size());
+      for (int i = 0; i < count; i++) {
+        assertEquals(i, threadCalls.get(i).intValue());
+      }
+    }
+  }
+
+  @Test
+  public void testCancelRunsActionsWhileSweeping() throws Exception {
+    for (int round = 0; round < 300; round++) {
+      final CancellationTokenSource cts = new CancellationTokenSource();
+      final CancellationToken token = cts.getToken();
+      final AtomicInteger calls = new AtomicInteger();
+      final int count = 100;
+      for (int i = 0; i < count; i++) {
+        token.register(new Runnable() {
+          @Override
+          public void run() {
+            calls.incrementAndGet();
+          }
+        });
+      }
+
+      final CountDownLatch started = new CountDownLatch(1);
+      Thread sweeper = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          while (!token.isCancellationRequested()) {
+            token.register(new Runnable() {
+              @Override
+              public void run() {
+              }
+            }).close();
+          }
+        }
+      });
+      sweeper.start();
+      started.await();
+
+      cts.cancel();
+      // Every action has run by the time cancel() returns, even mid-sweep.
+      assertEquals(count, calls.get());
+      sweeper.join();
+    }
+  }
+
+  @Test
+  public void testTokenCallsEachActionOnceWhenCancelledConcurrently() throws Exception {
+    final int threads = 4;
+    final int registrationsPerThread = 500;
+    for (int round = 0; round < 20; round++) {
+      final CancellationTokenSource cts = new CancellationTokenSource();
+      final CancellationToken token = cts.getToken();
+      final AtomicIntegerArray calls = new AtomicIntegerArray(threads * registrationsPerThread);
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int i = 0; i < registrationsPerThread; i++) {
+                final int index = thread * registrationsPerThread + i;
+                CancellationTokenRegistration registration = token.register(new Runnable() {
+                  @Override
+                  public void run() {
+                    calls.incrementAndGet(index);
+                  }
+                });
+                if (i % 2 == 0) {
+                  registration.close();
+                }
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } finally {
+              done.countDown();
+            }
+          }
+        }).start();
+      }
+
+      start.countDown();
+      Thread.sleep(round % 3);
+      cts.cancel();
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+
+      // Every action that was not unregistered ran exactly once, the others at most once.
+      for (int i = 0; i < calls.length(); i++) {
+        if (i % 2 == 0) {
+          assertTrue(calls.get(i) <= 1);
+        } else {
+          assertEquals(1, calls.get(i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCloseDoesNotWaitForRunningAction() throws Exception {
+    final CancellationTokenSource cts = new CancellationTokenSource();
+    final CountDownLatch running = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CancellationTokenRegistration registration = cts.getToken().register(new Runnable() {
+      @Override
+      public void run() {
+        running.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    Thread canceller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        cts.cancel();
+      }
+    });
+    canceller.start();
+    try {
+      assertTrue(running.await(10, TimeUnit.SECONDS));
+      // Neither of these can wait for the action, which only returns once they have.
+      registration.close();
+      cts.close();
+    } finally {
+      release.countDown();
+    }
+    canceller.join(10000);
+    assertFalse(canceller.isAlive());
+  }
+
+  @Test
+  public void testActionCanUseItsToken() {
+    final CancellationTokenSource cts = new CancellationTokenSource();
+    final CancellationToken token = cts.getToken();
+    final Capture<CancellationTokenRegistration> registration = new Capture<>();
+    final Capture<Object> result = new Capture<>();
+
+    registration.set(token.register(new Runnable() {
+      @Override
+      public void run() {
+        registration.get().close();
+        token.register(new Runnable() {
+          @Override
+          public void run() {
+            result.set("Run!");
+          }
+        });
+      }
+    }));
+    cts.cancel();
+
+    // Registering on the cancelled token from its own callback runs the new action right away.
+    assertNotNull(result.get());
+  }
+
+  @Test
+  public void testLinkedTokenSourceIsCancelledByParent() {
+    CancellationTokenSource parent1 = new CancellationTokenSource();
+    CancellationTokenSource parent2 = new CancellationTokenSource();
+    CancellationTokenSource linked = CancellationTokenSource.createLinkedTokenSource(
+        parent1.getToken(), null, parent2.getToken());
+    final Capture<Object> result = new Capture<>();
+    linked.getToken().register(new Runnable() {
+      @Override
+      public void run() {
+        result.set("Run!");
+      }
+    });
+
+    assertFalse(linked.isCancellationRequested());
+    assertEquals(1, parent1.openRegistrationCount());
+    assertEquals(1, parent2.openRegistrationCount());
+    parent2.cancel();
+
+    assertTrue(linked.isCancellationRequested());
+    assertNotNull(result.get());
+    assertFalse(parent1.isCancellationRequested());
+    // The registration on the other parent has been closed along with the linked source.
+    assertEquals(0, parent1.openRegistrationCount());
+  }
+
+  @Test
+  public void testLinkedTokenSourceDoesNotCancelParent() {
+    CancellationTokenSource parent = new CancellationTokenSource();
+    CancellationTokenSource linked =
+        CancellationTokenSource.createLinkedTokenSource(parent.getToken());
+
+    linked.cancel();
+
+    assertTrue(linked.isCancellationRequested());
+    assertFalse(parent.isCancellationRequested());
+    assertEquals(0, parent.openRegistrationCount());
+  }
+
+  @Test
+  public void testLinkedTokenSourceOfCancelledToken() {
+    CancellationTokenSource parent = new CancellationTokenSource();
+    parent.cancel();
+
+    CancellationTokenSource linked =
+        CancellationTokenSource.createLinkedTokenSource(parent.getToken());
+
+    assertTrue(linked.isCancellationRequested());
+  }
+
+  @Test
+  public void testClosedLinkedTokenSourceIsUnregistered() {
+    CancellationTokenSource parent = new CancellationTokenSource();
+    CancellationTokenSource linked =
+        CancellationTokenSource.createLinkedTokenSource(parent.getToken());
+
+    assertEquals(1, parent.openRegistrationCount());
+    linked.close();
+
+    assertEquals(0, parent.openRegistrationCount());
+  }
+
+  @Test
+  public void testLinkedTokenSourceOfClosedToken() {
+    CancellationTokenSource parent1 = new CancellationTokenSource();
+    CancellationTokenSource parent2 = new CancellationTokenSource();
+    CancellationToken token = parent2.getToken();
+    parent2.close();
+
+    try {
+      CancellationTokenSource.createLinkedTokenSource(parent1.getToken(), token);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    // The registration made on the first parent has been closed.
+    assertEquals(0, parent1.openRegistrationCount());
+  }
+
+  @Test
+  public void testLinkedTokenSourceHierarchy() {
+    CancellationTokenSource root = new CancellationTokenSource();
+    CancellationTokenSource parent = root;
+    List<CancellationTokenSource> sources = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      parent = CancellationTokenSource.createLinkedTokenSource(parent.getToken());
+      sources.add(parent);
+    }
+    final Capture<Object> result = new Capture<>();
+    parent.getToken().register(new Runnable() {
+      @Override
+      public void run() {
+        result.set("Run!");
+      }
+    });
+
+    root.cancel();
+
+    assertNotNull(result.get());
+    for (CancellationTokenSource cts : sources) {
+      assertTrue(cts.isCancellationRequested());
+    }
+  }
 }
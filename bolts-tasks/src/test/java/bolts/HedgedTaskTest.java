@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HedgedTaskTest {
+
+  @Test
+  public void testFirstAttemptSucceeds() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        return Task.forResult(1);
+      }
+    }, 3, 10000, cts);
+
+    assertEquals(1, hedged.getTask().getResult().intValue());
+    assertEquals(1, hedged.getAttemptCount());
+    assertEquals(0, hedged.getHedgeCount());
+    assertTrue(cts.isCancellationRequested());
+  }
+
+  @Test
+  public void testHedgeAfterDelay() throws Exception {
+    final CancellationTokenSource cts = new CancellationTokenSource();
+    final List<TaskCompletionSource<Integer>> attempts = new ArrayList<>();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        final TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+        synchronized (attempts) {
+          attempts.add(tcs);
+          if (attempts.size() == 2) {
+            tcs.setResult(2);
+          }
+        }
+        cts.getToken().register(new Runnable() {
+          @Override
+          public void run() {
+            tcs.trySetCancelled();
+          }
+        });
+        return tcs.getTask();
+      }
+    }, 3, 10, cts);
+
+    assertTrue(hedged.getTask().waitForCompletion(10, TimeUnit.SECONDS));
+    assertEquals(2, hedged.getTask().getResult().intValue());
+    assertEquals(1, hedged.getHedgeCount());
+    // The source is cancelled right after the task completes.
+    Task<Integer> first;
+    synchronized (attempts) {
+      first = attempts.get(0).getTask();
+    }
+    assertTrue(first.waitForCompletion(5, TimeUnit.SECONDS));
+    assertTrue(first.isCancelled());
+    assertTrue(cts.isCancellationRequested());
+  }
+
+  @Test
+  public void testHedgeAfterFailure() throws Exception {
+    final AtomicInteger count = new AtomicInteger();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        if (count.incrementAndGet() == 1) {
+          throw new RuntimeException("This attempt failed.");
+        }
+        return Task.forResult(2);
+      }
+    }, 3, 10000);
+
+    // The first attempt failed, the delay is not waited for.
+    assertTrue(hedged.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    assertEquals(2, hedged.getTask().getResult().intValue());
+    assertEquals(2, hedged.getAttemptCount());
+  }
+
+  @Test
+  public void testAllAttemptsFail() throws Exception {
+    final AtomicInteger count = new AtomicInteger();
+    final List<Exception> errors = new ArrayList<>();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        Exception error = new RuntimeException("Attempt " + count.incrementAndGet() + " failed.");
+        synchronized (errors) {
+          errors.add(error);
+        }
+        return Task.forError(error);
+      }
+    }, 3, 10000);
+
+    assertTrue(hedged.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    assertEquals(3, hedged.getAttemptCount());
+    assertTrue(hedged.getTask().isFaulted());
+    synchronized (errors) {
+      assertSame(errors.get(2), hedged.getTask().getError());
+    }
+  }
+
+  @Test
+  public void testFailedAttemptsReleaseTheirDelays() throws Exception {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        return Task.forError(new RuntimeException("This attempt failed."));
+      }
+    }, 3, 10000, cts);
+
+    assertTrue(hedged.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    assertTrue(hedged.getTask().isFaulted());
+    assertFalse(cts.isCancellationRequested());
+    // The attempts failed long before their delays, none of them is still registered.
+    assertEquals(0, cts.openRegistrationCount());
+  }
+
+  @Test
+  public void testCancelled() throws Exception {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        return new TaskCompletionSource<Integer>().getTask();
+      }
+    }, 3, 10000, cts);
+
+    cts.cancel();
+    assertTrue(hedged.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    assertTrue(hedged.getTask().isCancelled());
+    assertEquals(1, hedged.getAttemptCount());
+    assertFalse(hedged.getTask().isFaulted());
+  }
+
+  @Test
+  public void testClosedSource() throws Exception {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        return new TaskCompletionSource<Integer>().getTask();
+      }
+    }, 3, 10, cts);
+
+    cts.close();
+    assertTrue(hedged.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    assertTrue(hedged.getTask().isCancelled());
+  }
+
+  @Test
+  public void testHedgeStartsInBackground() throws Exception {
+    final List<String> threads = new ArrayList<>();
+    HedgedTask<Integer> hedged = HedgedTask.call(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        synchronized (threads) {
+          threads.add(Thread.currentThread().getName());
+          if (threads.size() == 2) {
+            return Task.forResult(2);
+          }
+        }
+        return new TaskCompletionSource<Integer>().getTask();
+      }
+    }, 2, 10);
+
+    assertTrue(hedged.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    synchronized (threads) {
+      assertEquals(Thread.currentThread().getName(), threads.get(0));
+      // Not started on the thread of the timer.
+      assertFalse(threads.get(1).equals("bolts-timer"));
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskScopeTest {
+
+  @Test
+  public void testJoin() throws Exception {
+    TaskScope scope = new TaskScope();
+    Task<Integer> child = scope.callInBackground(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        return 1;
+      }
+    });
+
+    Task<Void> task = scope.join();
+    assertTrue(task.waitForCompletion(5, TimeUnit.SECONDS));
+    assertFalse(task.isFaulted());
+    assertFalse(task.isCancelled());
+    assertEquals(1, child.getResult().intValue());
+  }
+
+  @Test
+  public void testCompletedScopeReleasesRegistrations() throws Exception {
+    TaskScope scope = new TaskScope();
+    CancellationTokenRegistration registration = scope.getToken().register(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    TaskCompletionSource<Void> child = new TaskCompletionSource<>();
+    scope.add(child.getTask());
+    scope.join();
+    assertFalse(registration.isClosed());
+
+    child.setResult(null);
+    assertTrue(scope.getTask().isCompleted());
+    assertTrue(registration.isClosed());
+  }
+
+  @Test
+  public void testTokenCanBeUsedAfterCompletion() throws Exception {
+    TaskScope scope = new TaskScope();
+    Task<Void> child = scope.add(Task.<Void>forResult(null));
+    scope.join();
+    assertTrue(scope.getTask().isCompleted());
+
+    Task<Integer> continuation = child.continueWith(new Continuation<Void, Integer>() {
+      @Override
+      public Integer then(Task<Void> task) throws Exception {
+        return 1;
+      }
+    }, scope.getToken());
+    assertEquals(1, continuation.getResult().intValue());
+    assertFalse(scope.getToken().isCancellationRequested());
+
+    // Closing a completed scope still cancels its token.
+    scope.close();
+    assertTrue(scope.getToken().isCancellationRequested());
+  }
+
+  @Test
+  public void testCloseCancelsChildren() throws Exception {
+    TaskScope scope = new TaskScope();
+    TaskCompletionSource<Void> running = new TaskCompletionSource<>();
+    Task<Void> child = scope.add(waitForCancellation(scope.getToken(), running));
+    assertFalse(scope.getTask().isCompleted());
+
+    scope.close();
+    assertTrue(child.isCancelled());
+    assertTrue(scope.getTask().isCancelled());
+  }
+
+  @Test
+  public void testFailureCancelsChildren() throws Exception {
+    final Exception error = new RuntimeException("This child failed.");
+    TaskScope scope = new TaskScope();
+    Task<Void> child = scope.add(
+        waitForCancellation(scope.getToken(), new TaskCompletionSource<Void>()));
+    TaskCompletionSource<Void> failing = new TaskCompletionSource<>();
+    scope.add(failing.getTask());
+
+    failing.setError(error);
+    assertTrue(child.isCancelled());
+    assertTrue(scope.getToken().isCancellationRequested());
+
+    scope.join();
+    assertSame(error, scope.getTask().getError());
+  }
+
+  @Test
+  public void testFailureWithoutCancellation() {
+    TaskScope scope = new TaskScope(false);
+    TaskCompletionSource<Void> running = new TaskCompletionSource<>();
+    Task<Void> child = scope.add(waitForCancellation(scope.getToken(), running));
+    scope.add(Task.<Void>forError(new RuntimeException("This child failed.")));
+
+    assertFalse(child.isCompleted());
+    assertFalse(scope.getToken().isCancellationRequested());
+    running.setResult(null);
+    assertTrue(scope.join().isFaulted());
+  }
+
+  @Test
+  public void testClosedScopeRejectsChildren() {
+    TaskScope scope = new TaskScope();
+    scope.close();
+    assertTrue(scope.getTask().isCompleted());
+    try {
+      scope.add(Task.forResult(1));
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCancelledChildStopsRunning() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final TaskScope scope = new TaskScope();
+    Task<Void> child = scope.callInBackground(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        started.countDown();
+        while (!scope.getToken().isCancellationRequested()) {
+          Thread.sleep(1);
+        }
+        return null;
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    scope.close();
+    assertTrue(scope.getTask().waitForCompletion(5, TimeUnit.SECONDS));
+    assertTrue(child.isCompleted());
+  }
+
+  private static Task<Void> waitForCancellation(CancellationToken token,
+      final TaskCompletionSource<Void> tcs) {
+    token.register(new Runnable() {
+      @Override
+      public void run() {
+        tcs.trySetCancelled();
+      }
+    });
+    return tcs.getTask();
+  }
+}
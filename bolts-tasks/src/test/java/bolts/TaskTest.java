@@ -10,21 +10,34 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 public class TaskTest {
 
@@ -171,6 +184,344 @@ public class TaskTest {
     assertEquals(3, third.getResult().intValue());
   }
 
+  @Test
+  public void testContinuationsRunInOrder() {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    final List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      final int index = i;
+      tcs.getTask().continueWith(new Continuation<Integer, Void>() {
+        public Void then(Task<Integer> task) {
+          order.add(index);
+          return null;
+        }
+      });
+    }
+    tcs.setResult(1);
+
+    assertEquals(5, order.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testContinuationsAddedConcurrentlyRunOnce() throws Exception {
+    final int count = 10000;
+    final TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
+    final AtomicInteger runs = new AtomicInteger();
+    final Continuation<Void, Void> continuation = new Continuation<Void, Void>() {
+      public Void then(Task<Void> task) {
+        assertTrue(task.isCompleted());
+        runs.incrementAndGet();
+        return null;
+      }
+    };
+
+    Thread adder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          tcs.getTask().continueWith(continuation);
+        }
+      }
+    });
+    adder.start();
+    tcs.setResult(null);
+    adder.join();
+
+    assertEquals(count, runs.get());
+  }
+
+  @Test
+  public void testSlowContinuationDoesNotBlockReaders() throws Exception {
+    final TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    final Task<Integer> task = tcs.getTask();
+    final CountDownLatch continuationStarted = new CountDownLatch(1);
+    final CountDownLatch readerFinished = new CountDownLatch(1);
+    final Capture<Boolean> readerFinishedInTime = new Capture<>(false);
+
+    task.continueWith(new Continuation<Integer, Void>() {
+      public Void then(Task<Integer> task) throws Exception {
+        continuationStarted.countDown();
+        readerFinishedInTime.set(readerFinished.await(10, TimeUnit.SECONDS));
+        return null;
+      }
+    });
+
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          continuationStarted.await();
+          task.waitForCompletion();
+          if (task.isCompleted() && !task.isFaulted() && !task.isCancelled()
+              && task.getResult() == 5
+              && task.continueWith(new Continuation<Integer, Integer>() {
+                public Integer then(Task<Integer> task) {
+                  return task.getResult() + 1;
+                }
+              }).getResult() == 6) {
+            readerFinished.countDown();
+          }
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    reader.start();
+
+    tcs.setResult(5);
+    reader.join();
+    assertTrue(readerFinishedInTime.get());
+  }
+
+  @Test
+  public void testChainedContinuationAllocations() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported()
+        && allocationBean.isThreadAllocatedMemoryEnabled());
+
+    final int chainLength = 10;
+    final int chains = 10000;
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    Continuation<Void, Void> continuation = new Continuation<Void, Void>() {
+      public Void then(Task<Void> task) {
+        return null;
+      }
+    };
+    List<TaskCompletionSource<Void>> sources = new ArrayList<>(chains);
+    for (int i = 0; i < chains; i++) {
+      sources.add(new TaskCompletionSource<Void>());
+    }
+
+    // Warm up so that class loading and compilation are not accounted for.
+    for (int i = 0; i < chains; i++) {
+      Task<Void> task = Task.forResult(null);
+      for (int j = 0; j < chainLength; j++) {
+        task = task.continueWith(continuation, executor);
+      }
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < chains; i++) {
+      Task<Void> task = sources.get(i).getTask();
+      for (int j = 0; j < chainLength; j++) {
+        task = task.continueWith(continuation, executor);
+      }
+      sources.get(i).setResult(null);
+    }
+    long bytesPerContinuation =
+        (allocationBean.getThreadAllocatedBytes(threadId) - before) / (chains * chainLength);
+
+    // One dispatch node and the returned task.
+    assertTrue("Allocated " + bytesPerContinuation + " bytes per continuation",
+        bytesPerContinuation <= 96);
+  }
+
+  @Test
+  public void testDeepSynchronousChainStaysOnThread() {
+    final Thread thread = Thread.currentThread();
+    final AtomicInteger otherThreadRuns = new AtomicInteger();
+    Continuation<Integer, Integer> increment = new Continuation<Integer, Integer>() {
+      public Integer then(Task<Integer> task) {
+        if (Thread.currentThread() != thread) {
+          otherThreadRuns.incrementAndGet();
+        }
+        return task.getResult() + 1;
+      }
+    };
+
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < 100000; i++) {
+      task = task.continueWith(increment);
+    }
+    tcs.setResult(0);
+
+    assertTrue(task.isCompleted());
+    assertEquals(100000, task.getResult().intValue());
+    assertEquals(0, otherThreadRuns.get());
+  }
+
+  @Test
+  public void testDeepChainCompletesIteratively() {
+    Executor inlineExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    Continuation<Integer, Integer> increment = new Continuation<Integer, Integer>() {
+      public Integer then(Task<Integer> task) {
+        return task.getResult() + 1;
+      }
+    };
+    Continuation<Integer, Task<Integer>> incrementTask = new Continuation<Integer, Task<Integer>>() {
+      public Task<Integer> then(Task<Integer> task) {
+        return Task.forResult(task.getResult() + 1);
+      }
+    };
+
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < 100000; i++) {
+      task = task.continueWith(increment, inlineExecutor)
+          .continueWithTask(incrementTask, inlineExecutor);
+    }
+    tcs.setResult(0);
+    assertTrue(task.isCompleted());
+    assertEquals(200000, task.getResult().intValue());
+
+    tcs = new TaskCompletionSource<>();
+    task = tcs.getTask();
+    for (int i = 0; i < 100000; i++) {
+      task = task.onSuccess(increment);
+    }
+    Exception error = new RuntimeException();
+    tcs.setError(error);
+    assertTrue(task.isCompleted());
+    assertSame(error, task.getError());
+  }
+
+  @Test
+  public void testDeepChainCanWaitForDeferredContinuation() throws Exception {
+    Executor inlineExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    final Continuation<Integer, Integer> increment = new Continuation<Integer, Integer>() {
+      public Integer then(Task<Integer> task) {
+        return task.getResult() + 1;
+      }
+    };
+    final Capture<Boolean> completed = new Capture<>();
+
+    TaskCompletionSource<Integer> source = new TaskCompletionSource<>();
+    Task<Integer> task = source.getTask();
+    for (int i = 0; i < 15; i++) {
+      task = task.continueWith(increment, inlineExecutor);
+    }
+    task.continueWith(new Continuation<Integer, Void>() {
+      public Void then(Task<Integer> task) throws Exception {
+        // Completed too deep in the chain, the continuations of this task are deferred.
+        TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+        Task<Integer> next = tcs.getTask().continueWith(increment, Task.BACKGROUND_EXECUTOR);
+        tcs.setResult(1);
+        completed.set(next.waitForCompletion(3, TimeUnit.SECONDS));
+        return null;
+      }
+    }, inlineExecutor);
+    source.setResult(0);
+
+    assertTrue(completed.get());
+  }
+
+  @Test
+  public void testContinueWithTaskLoopDoesNotRetainIterations() throws Exception {
+    final int iterations = 1000;
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final List<WeakReference<Task<Integer>>> iterationTasks = new ArrayList<>();
+    final Capture<Integer> retained = new Capture<>();
+
+    Task<Integer> loop = new Object() {
+      Task<Integer> iterate(final int i) {
+        return Task.call(new Callable<Integer>() {
+          public Integer call() {
+            return i;
+          }
+        }, executor).continueWithTask(new Continuation<Integer, Task<Integer>>() {
+          public Task<Integer> then(Task<Integer> task) throws Exception {
+            if (task.getResult() < iterations) {
+              Task<Integer> next = iterate(task.getResult() + 1);
+              if (iterationTasks.size() < 100) {
+                iterationTasks.add(new WeakReference<>(next));
+              }
+              return next;
+            }
+
+            // The loop is still running, the tasks of the previous iterations should be garbage.
+            for (int attempt = 0; attempt < 10 && countRetained() > 0; attempt++) {
+              System.gc();
+              Thread.sleep(10);
+            }
+            retained.set(countRetained());
+            return Task.forResult(task.getResult());
+          }
+
+          private int countRetained() {
+            int count = 0;
+            for (WeakReference<Task<Integer>> reference : iterationTasks) {
+              if (reference.get() != null) {
+                count++;
+              }
+            }
+            return count;
+          }
+        });
+      }
+    }.iterate(0);
+
+    loop.waitForCompletion();
+    executor.shutdown();
+    assertEquals(iterations, loop.getResult().intValue());
+    assertEquals(0, retained.get().intValue());
+  }
+
+  @Test
+  public void testLinkedTaskObservesOutcome() throws Exception {
+    final TaskCompletionSource<Integer> inner = new TaskCompletionSource<>();
+    final TaskCompletionSource<Void> start = new TaskCompletionSource<>();
+    Task<Integer> outer = start.getTask().continueWithTask(
+        new Continuation<Void, Task<Integer>>() {
+          public Task<Integer> then(Task<Void> task) {
+            return inner.getTask();
+          }
+        });
+    final Capture<Integer> innerContinuationResult = new Capture<>();
+    inner.getTask().continueWith(new Continuation<Integer, Void>() {
+      public Void then(Task<Integer> task) {
+        assertSame(inner.getTask(), task);
+        innerContinuationResult.set(task.getResult());
+        return null;
+      }
+    });
+    final Capture<Boolean> waited = new Capture<>(false);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          waited.set(inner.getTask().waitForCompletion(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    waiter.start();
+    start.setResult(null);
+
+    assertFalse(inner.getTask().isCompleted());
+    assertFalse(outer.isCompleted());
+    assertTrue(inner.trySetResult(5));
+    assertFalse(inner.trySetResult(6));
+    waiter.join();
+
+    assertTrue(waited.get());
+    assertEquals(5, inner.getTask().getResult().intValue());
+    assertEquals(5, outer.getResult().intValue());
+    assertEquals(5, innerContinuationResult.get().intValue());
+  }
+
   @Test
   public void testSynchronousCancellation() {
     Task<Integer> first = Task.forResult(1);
@@ -650,6 +1001,46 @@ public class TaskTest {
     });
   }
 
+  @Test
+  public void testWhenAnyDetachesLosers() throws Exception {
+    // Races a slow, long-lived task against fast ones.
+    bolts.TaskCompletionSource<Integer> slow = new bolts.TaskCompletionSource<>();
+    List<WeakReference<Task<Task<Integer>>>> races = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Task<Task<Integer>> race = Task.whenAnyResult(Arrays.asList(slow.getTask(), Task.forResult(i)));
+      assertEquals(i, race.getResult().getResult().intValue());
+      races.add(new WeakReference<>(race));
+    }
+    for (int attempt = 0; attempt < 10 && races.get(0).get() != null; attempt++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    for (WeakReference<Task<Task<Integer>>> race : races) {
+      assertNull(race.get());
+    }
+  }
+
+  @Test
+  public void testWhenAnyCancelsLosers() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    bolts.TaskCompletionSource<Integer> winner = new bolts.TaskCompletionSource<>();
+    final bolts.TaskCompletionSource<Integer> loser = new bolts.TaskCompletionSource<>();
+    cts.getToken().register(new Runnable() {
+      @Override
+      public void run() {
+        loser.setCancelled();
+      }
+    });
+
+    Task<Task<?>> any = Task.whenAny(Arrays.asList(loser.getTask(), winner.getTask()), cts);
+    assertFalse(cts.isCancellationRequested());
+    winner.setResult(1);
+
+    assertSame(winner.getTask(), any.getResult());
+    assertTrue(cts.isCancellationRequested());
+    assertTrue(loser.getTask().isCancelled());
+  }
+
   /**
    * Launches a given number of tasks (of Integer) that will complete either in a completed,
    * cancelled or faulted state (random distribution).
@@ -803,6 +1194,58 @@ public class TaskTest {
     });
   }
 
+  @Test
+  public void testWhenAllErrorsInTaskOrder() {
+    final Exception error0 = new RuntimeException("This task failed (0).");
+    final Exception error1 = new RuntimeException("This task failed (1).");
+    bolts.TaskCompletionSource<Void> tcs0 = new bolts.TaskCompletionSource<>();
+    bolts.TaskCompletionSource<Void> tcs1 = new bolts.TaskCompletionSource<>();
+    bolts.TaskCompletionSource<Void> tcs2 = new bolts.TaskCompletionSource<>();
+
+    Task<Void> all = Task.whenAll(Arrays.asList(tcs0.getTask(), tcs1.getTask(), tcs2.getTask()));
+    tcs2.setError(error1);
+    tcs1.setResult(null);
+    assertFalse(all.isCompleted());
+    tcs0.setError(error0);
+
+    assertTrue(all.isFaulted());
+    List<Throwable> errors = ((AggregateException) all.getError()).getInnerThrowables();
+    assertEquals(Arrays.<Throwable>asList(error0, error1), errors);
+  }
+
+  @Test
+  public void testWhenAllCompletedConcurrently() throws Exception {
+    final int count = 10000;
+    final List<bolts.TaskCompletionSource<Void>> sources = new ArrayList<>();
+    List<Task<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      bolts.TaskCompletionSource<Void> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+    Task<Void> all = Task.whenAll(tasks);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 4; i++) {
+        final int offset = i;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = offset; j < count; j += 4) {
+              sources.get(j).setResult(null);
+            }
+          }
+        });
+      }
+      assertTrue(all.waitForCompletion(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+    assertFalse(all.isFaulted());
+    assertFalse(all.isCancelled());
+  }
+
   @Test
   public void testWhenAllCancel() {
     runTaskTest(new Callable<Task<?>>() {
@@ -845,6 +1288,587 @@ public class TaskTest {
     });
   }
 
+  @Test
+  public void testWhenAllFailFast() {
+    final Exception error = new RuntimeException("This task failed.");
+    CancellationTokenSource cts = new CancellationTokenSource();
+    bolts.TaskCompletionSource<Void> pending = new bolts.TaskCompletionSource<>();
+    bolts.TaskCompletionSource<Void> failing = new bolts.TaskCompletionSource<>();
+    List<Task<Void>> tasks = Arrays.asList(
+        Task.<Void>forResult(null), pending.getTask(), failing.getTask());
+
+    Task<Void> all = Task.whenAllFailFast(tasks, cts);
+    assertFalse(all.isCompleted());
+    failing.setError(error);
+
+    assertTrue(all.isFaulted());
+    assertSame(error, all.getError());
+    assertTrue(cts.isCancellationRequested());
+    assertFalse(pending.getTask().isCompleted());
+  }
+
+  @Test
+  public void testWhenAllFailFastSuccess() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    bolts.TaskCompletionSource<Void> tcs = new bolts.TaskCompletionSource<>();
+    Task<Void> all = Task.whenAllFailFast(
+        Arrays.asList(Task.<Void>forResult(null), tcs.getTask()), cts);
+    tcs.setResult(null);
+
+    assertTrue(all.isCompleted());
+    assertFalse(all.isFaulted());
+    assertFalse(all.isCancelled());
+    assertFalse(cts.isCancellationRequested());
+  }
+
+  @Test
+  public void testWhenAllFailFastDetachesFromPendingTasks() throws Exception {
+    bolts.TaskCompletionSource<Void> pending = new bolts.TaskCompletionSource<>();
+    final AtomicInteger continuations = new AtomicInteger();
+    pending.getTask().continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        continuations.incrementAndGet();
+        return null;
+      }
+    });
+
+    List<WeakReference<Task<Void>>> aggregates = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Task<Void> all = Task.whenAllFailFast(
+          Arrays.asList(pending.getTask(), Task.<Void>cancelled()), null);
+      assertTrue(all.isCancelled());
+      aggregates.add(new WeakReference<>(all));
+    }
+    for (int attempt = 0; attempt < 10 && aggregates.get(0).get() != null; attempt++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    for (WeakReference<Task<Void>> aggregate : aggregates) {
+      assertNull(aggregate.get());
+    }
+
+    // The continuations that are still attached keep running once.
+    pending.setResult(null);
+    assertEquals(1, continuations.get());
+  }
+
+  @Test
+  public void testDetachingKeepsContinuationOrder() throws Exception {
+    final bolts.TaskCompletionSource<Void> pending = new bolts.TaskCompletionSource<>();
+    final List<Integer> order = new ArrayList<>();
+    final int count = 20000;
+    final CountDownLatch added = new CountDownLatch(1);
+
+    Thread detacher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // Each aggregate detaches from the pending task while continuations are added to it.
+        while (added.getCount() > 0) {
+          Task.whenAllFailFast(Arrays.asList(pending.getTask(), Task.<Void>cancelled()), null);
+        }
+      }
+    });
+    detacher.start();
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      pending.getTask().continueWith(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          order.add(index);
+          return null;
+        }
+      });
+    }
+    added.countDown();
+    detacher.join();
+
+    pending.setResult(null);
+    assertEquals(count, order.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testCompletionRunsContinuationsWhileDetaching() throws Exception {
+    for (int round = 0; round < 300; round++) {
+      final bolts.TaskCompletionSource<Void> pending = new bolts.TaskCompletionSource<>();
+      final AtomicInteger runs = new AtomicInteger();
+      final int count = 100;
+      for (int i = 0; i < count; i++) {
+        pending.getTask().continueWith(new Continuation<Void, Void>() {
+          @Override
+          public Void then(Task<Void> task) throws Exception {
+            runs.incrementAndGet();
+            return null;
+          }
+        });
+      }
+
+      final CountDownLatch started = new CountDownLatch(1);
+      Thread detacher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          while (!pending.getTask().isCompleted()) {
+            Task.whenAllFailFast(Arrays.asList(pending.getTask(), Task.<Void>cancelled()), null);
+          }
+        }
+      });
+      detacher.start();
+      started.await();
+
+      pending.setResult(null);
+      // Every continuation has run by the time the task is completed, even mid-sweep.
+      assertEquals(count, runs.get());
+      detacher.join();
+    }
+  }
+
+  @Test
+  public void testWhenN() {
+    CancellationTokenSource cts = new CancellationTokenSource();
+    List<bolts.TaskCompletionSource<Integer>> sources = new ArrayList<>();
+    List<Task<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      bolts.TaskCompletionSource<Integer> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+
+    Task<List<Integer>> quorum = Task.whenN(tasks, 2, cts);
+    sources.get(3).setResult(3);
+    sources.get(0).setError(new RuntimeException("This task failed."));
+    assertFalse(quorum.isCompleted());
+    sources.get(1).setResult(1);
+
+    assertEquals(Arrays.asList(3, 1), quorum.getResult());
+    assertTrue(cts.isCancellationRequested());
+    assertFalse(sources.get(2).getTask().isCompleted());
+  }
+
+  @Test
+  public void testWhenNFailsOnceImpossible() {
+    final Exception error0 = new RuntimeException("This task failed (0).");
+    final Exception error1 = new RuntimeException("This task failed (1).");
+    bolts.TaskCompletionSource<Integer> pending = new bolts.TaskCompletionSource<>();
+    Task<List<Integer>> quorum = Task.whenN(Arrays.asList(Task.<Integer>forError(error1),
+        Task.forResult(1), Task.<Integer>forError(error0), pending.getTask()), 3);
+
+    assertTrue(quorum.isFaulted());
+    List<Throwable> errors = ((AggregateException) quorum.getError()).getInnerThrowables();
+    assertEquals(Arrays.<Throwable>asList(error1, error0), errors);
+  }
+
+  @Test
+  public void testWhenNCancelledOnceImpossible() {
+    Task<List<Integer>> quorum = Task.whenN(
+        Arrays.asList(Task.forResult(1), Task.<Integer>cancelled()), 2);
+
+    assertTrue(quorum.isCancelled());
+  }
+
+  @Test
+  public void testWhenNNone() {
+    Task<List<Integer>> quorum = Task.whenN(Arrays.asList(Task.<Integer>cancelled()), 0);
+
+    assertTrue(quorum.getResult().isEmpty());
+  }
+
+  @Test
+  public void testWhenNInvalidCount() {
+    thrown.expect(IllegalArgumentException.class);
+    Task.whenN(Arrays.asList(Task.forResult(1)), 2);
+  }
+
+  @Test
+  public void testWhenNCompletedConcurrently() throws Exception {
+    final int count = 1000;
+    final List<bolts.TaskCompletionSource<Integer>> sources = new ArrayList<>();
+    List<Task<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      bolts.TaskCompletionSource<Integer> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+    Task<List<Integer>> quorum = Task.whenN(tasks, count / 2);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 4; i++) {
+        final int offset = i;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = offset; j < count; j += 4) {
+              sources.get(j).setResult(j);
+            }
+          }
+        });
+      }
+      assertTrue(quorum.waitForCompletion(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(count / 2, quorum.getResult().size());
+    assertFalse(quorum.getResult().contains(null));
+  }
+
+  @Test
+  public void testInCompletionOrder() {
+    final Exception error = new RuntimeException("This task failed.");
+    List<bolts.TaskCompletionSource<Integer>> sources = new ArrayList<>();
+    List<Task<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      bolts.TaskCompletionSource<Integer> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+
+    List<Task<Integer>> ordered = Task.inCompletionOrder(tasks);
+    assertEquals(3, ordered.size());
+    sources.get(2).setResult(2);
+    assertEquals(2, ordered.get(0).getResult().intValue());
+    assertFalse(ordered.get(1).isCompleted());
+
+    sources.get(0).setError(error);
+    sources.get(1).setCancelled();
+    assertSame(error, ordered.get(1).getError());
+    assertTrue(ordered.get(2).isCancelled());
+  }
+
+  @Test
+  public void testInCompletionOrderConcurrently() throws Exception {
+    final int count = 1000;
+    List<Task<Integer>> tasks = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < count; i++) {
+        final int number = i;
+        tasks.add(Task.call(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            return number;
+          }
+        }, executor));
+      }
+      List<Task<Integer>> ordered = Task.inCompletionOrder(tasks);
+
+      Set<Integer> results = new HashSet<>();
+      for (Task<Integer> task : ordered) {
+        assertTrue(task.waitForCompletion(10, TimeUnit.SECONDS));
+        results.add(task.getResult());
+      }
+      assertEquals(count, results.size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testReduceConcurrently() throws Exception {
+    final int count = 10000;
+    final List<bolts.TaskCompletionSource<Integer>> sources = new ArrayList<>();
+    List<Task<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      bolts.TaskCompletionSource<Integer> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+    final AtomicInteger folding = new AtomicInteger();
+    Task<Long> sum = Task.reduce(tasks, 0L, new Accumulator<Long, Integer>() {
+      @Override
+      public Long accumulate(Long accumulated, Integer result) {
+        // The accumulator is never called concurrently.
+        assertEquals(1, folding.incrementAndGet());
+        folding.decrementAndGet();
+        return accumulated + result;
+      }
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 4; i++) {
+        final int offset = i;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = offset; j < count; j += 4) {
+              sources.get(j).setResult(j);
+            }
+          }
+        });
+      }
+      assertTrue(sum.waitForCompletion(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals((long) count * (count - 1) / 2, sum.getResult().longValue());
+  }
+
+  @Test
+  public void testReduceInOrder() {
+    List<bolts.TaskCompletionSource<String>> sources = new ArrayList<>();
+    List<Task<String>> tasks = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      bolts.TaskCompletionSource<String> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+    final List<String> folded = new ArrayList<>();
+    Task<String> joined = Task.reduceInOrder(tasks, "", new Accumulator<String, String>() {
+      @Override
+      public String accumulate(String accumulated, String result) {
+        folded.add(result);
+        return accumulated + result;
+      }
+    });
+
+    sources.get(1).setResult("b");
+    sources.get(2).setResult("c");
+    assertTrue(folded.isEmpty());
+    sources.get(0).setResult("a");
+
+    assertEquals("abc", joined.getResult());
+    assertEquals(Arrays.asList("a", "b", "c"), folded);
+  }
+
+  @Test
+  public void testReduceStopsOnError() {
+    final Exception error = new RuntimeException("This task failed.");
+    bolts.TaskCompletionSource<Integer> pending = new bolts.TaskCompletionSource<>();
+    final AtomicInteger folded = new AtomicInteger();
+    Task<Integer> sum = Task.reduceInOrder(
+        Arrays.asList(Task.forResult(1), Task.<Integer>forError(error), pending.getTask()), 0,
+        new Accumulator<Integer, Integer>() {
+          @Override
+          public Integer accumulate(Integer accumulated, Integer result) {
+            folded.incrementAndGet();
+            return accumulated + result;
+          }
+        });
+
+    assertSame(error, sum.getError());
+    pending.setResult(3);
+    assertEquals(1, folded.get());
+  }
+
+  @Test
+  public void testReduceAccumulatorError() {
+    final Exception error = new RuntimeException("The accumulator failed.");
+    Task<Integer> sum = Task.reduce(Arrays.asList(Task.forResult(1), Task.forResult(2)), 0,
+        new Accumulator<Integer, Integer>() {
+          @Override
+          public Integer accumulate(Integer accumulated, Integer result) throws Exception {
+            throw error;
+          }
+        });
+
+    assertSame(error, sum.getError());
+  }
+
+  @Test
+  public void testZip() {
+    bolts.TaskCompletionSource<Integer> first = new bolts.TaskCompletionSource<>();
+    bolts.TaskCompletionSource<String> second = new bolts.TaskCompletionSource<>();
+    Task<String> zipped = Task.zip(first.getTask(), second.getTask(),
+        new Combiner2<Integer, String, String>() {
+          @Override
+          public String combine(Integer first, String second) {
+            return second + first;
+          }
+        });
+
+    second.setResult("a");
+    assertFalse(zipped.isCompleted());
+    first.setResult(1);
+    assertEquals("a1", zipped.getResult());
+  }
+
+  @Test
+  public void testZipThree() {
+    Task<Integer> zipped = Task.zip(Task.forResult(1), Task.forResult(2L), Task.forResult("3"),
+        new Combiner3<Integer, Long, String, Integer>() {
+          @Override
+          public Integer combine(Integer first, Long second, String third) {
+            return first + second.intValue() + Integer.parseInt(third);
+          }
+        });
+
+    assertEquals(6, zipped.getResult().intValue());
+  }
+
+  @Test
+  public void testZipErrors() {
+    final Exception error0 = new RuntimeException("This task failed (0).");
+    final Exception error1 = new RuntimeException("This task failed (1).");
+    final AtomicInteger combined = new AtomicInteger();
+    Combiner3<Object, Object, Object, Void> combiner = new Combiner3<Object, Object, Object, Void>() {
+      @Override
+      public Void combine(Object first, Object second, Object third) {
+        combined.incrementAndGet();
+        return null;
+      }
+    };
+
+    Task<Void> failed = Task.zip(Task.forError(error0), Task.cancelled(), Task.forResult(1),
+        combiner);
+    assertSame(error0, failed.getError());
+
+    Task<Void> aggregated = Task.zip(Task.forError(error0), Task.forResult(1),
+        Task.forError(error1), combiner);
+    assertEquals(Arrays.<Throwable>asList(error0, error1),
+        ((AggregateException) aggregated.getError()).getInnerThrowables());
+
+    Task<Void> cancelled = Task.zip(Task.forResult(1), Task.cancelled(), Task.forResult(1),
+        combiner);
+    assertTrue(cancelled.isCancelled());
+    assertEquals(0, combined.get());
+  }
+
+  @Test
+  public void testZipCombinerError() {
+    final Exception error = new RuntimeException("The combiner failed.");
+    Task<Void> zipped = Task.zip(Task.forResult(1), Task.forResult(2),
+        new Combiner2<Integer, Integer, Void>() {
+          @Override
+          public Void combine(Integer first, Integer second) throws Exception {
+            throw error;
+          }
+        });
+
+    assertSame(error, zipped.getError());
+  }
+
+  @Test
+  public void testWithTimeoutCompletedTask() {
+    Task<Integer> task = Task.forResult(1);
+
+    assertSame(task, task.withTimeout(0));
+  }
+
+  @Test
+  public void testWithTimeoutResult() throws Exception {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    CancellationTokenSource cts = new CancellationTokenSource();
+    Task<Integer> task = tcs.getTask().withTimeout(10000, cts);
+
+    assertFalse(task.isCompleted());
+    tcs.setResult(1);
+
+    assertEquals(1, task.getResult().intValue());
+    assertFalse(cts.isCancellationRequested());
+  }
+
+  @Test
+  public void testWithTimeoutCancelsTimer() throws Exception {
+    TimingWheel timer = new TimingWheel(10, TimeUnit.MILLISECONDS, 512);
+    try {
+      TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+      Task<Integer> task = tcs.getTask().withTimeout(10000, null, timer);
+      assertEquals(1, timer.pendingTimeouts());
+
+      tcs.setResult(1);
+
+      assertEquals(1, task.getResult().intValue());
+      assertEquals(0, timer.pendingTimeouts());
+    } finally {
+      timer.stop();
+    }
+  }
+
+  @Test
+  public void testWithTimeoutError() throws Exception {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask().withTimeout(10000);
+    Exception error = new RuntimeException("This task failed.");
+
+    tcs.setError(error);
+
+    assertSame(error, task.getError());
+  }
+
+  @Test
+  public void testWithTimeoutCancelled() throws Exception {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask().withTimeout(10000);
+
+    tcs.setCancelled();
+
+    assertTrue(task.isCancelled());
+  }
+
+  @Test
+  public void testWithTimeoutExpires() throws Exception {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    CancellationTokenSource cts = new CancellationTokenSource();
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    cts.getToken().register(new Runnable() {
+      @Override
+      public void run() {
+        cancelled.countDown();
+      }
+    });
+    Task<Integer> task = tcs.getTask().withTimeout(20, cts);
+
+    assertTrue(task.waitForCompletion(10, TimeUnit.SECONDS));
+    assertTrue(task.getError() instanceof TimeoutException);
+    // The source is cancelled right after the task completes.
+    assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+
+    // The source completing later does not change the outcome.
+    tcs.setError(new RuntimeException("This task failed."));
+    assertTrue(task.getError() instanceof TimeoutException);
+  }
+
+  @Test
+  public void testWithTimeoutObservesLateError() throws Exception {
+    final Exception lateError = new RuntimeException("This task failed after timing out.");
+    final Exception controlError = new RuntimeException("This task failed unobserved.");
+    final List<Throwable> reported = new ArrayList<>();
+    final CountDownLatch controlReported = new CountDownLatch(1);
+    try {
+      Task.setUnobservedExceptionHandler(new Task.UnobservedExceptionHandler() {
+        @Override
+        public void unobservedException(Task<?> t, UnobservedTaskException e) {
+          synchronized (reported) {
+            reported.add(e.getCause());
+          }
+          if (e.getCause() == controlError) {
+            controlReported.countDown();
+          }
+        }
+      });
+
+      failAfterTimeout(lateError);
+      Task.forError(controlError);
+      for (int attempt = 0; attempt < 100 && controlReported.getCount() > 0; attempt++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      assertTrue(controlReported.await(10, TimeUnit.SECONDS));
+      System.gc();
+      Thread.sleep(10);
+
+      // The timed out task stopped observing the source, which counts as observing its error.
+      synchronized (reported) {
+        assertFalse(reported.contains(lateError));
+      }
+    } finally {
+      Task.setUnobservedExceptionHandler(null);
+    }
+  }
+
+  // runs in a separate method to ensure it is out of scope.
+  private void failAfterTimeout(Exception error) throws InterruptedException {
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask().withTimeout(1);
+    assertTrue(task.waitForCompletion(10, TimeUnit.SECONDS));
+    assertTrue(task.getError() instanceof TimeoutException);
+    tcs.setError(error);
+  }
+
   @Test
   public void testWhenAllResultNoTasks() {
     Task<List<Void>> task = Task.whenAllResult(new ArrayList<Task<Void>>());
@@ -893,6 +1917,34 @@ public class TaskTest {
     });
   }
 
+  @Test
+  public void testWhenAllResultIteratesTasksOnce() {
+    final AtomicInteger iterations = new AtomicInteger();
+    final List<bolts.TaskCompletionSource<Integer>> sources = new ArrayList<>();
+    LinkedList<Task<Integer>> tasks = new LinkedList<Task<Integer>>() {
+      @Override
+      public Iterator<Task<Integer>> iterator() {
+        iterations.incrementAndGet();
+        return super.iterator();
+      }
+    };
+    for (int i = 0; i < 3; i++) {
+      bolts.TaskCompletionSource<Integer> tcs = new bolts.TaskCompletionSource<>();
+      sources.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+
+    Task<List<Integer>> all = Task.whenAllResult(tasks);
+    sources.get(2).setResult(3);
+    sources.get(0).setResult(1);
+    sources.get(1).setResult(2);
+
+    assertEquals(1, iterations.get());
+    assertEquals(Arrays.asList(1, 2, 3), all.getResult());
+    thrown.expect(UnsupportedOperationException.class);
+    all.getResult().set(0, 0);
+  }
+
   @Test
   public void testAsyncChaining() {
     runTaskTest(new Callable<Task<?>>() {
@@ -953,6 +2005,47 @@ public class TaskTest {
     assertTrue(cancelled.isCancelled());
   }
 
+  @Test
+  public void testOnSuccessChainDispatchesOncePerLink() {
+    final AtomicInteger dispatches = new AtomicInteger();
+    Executor countingExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        dispatches.incrementAndGet();
+        command.run();
+      }
+    };
+    Continuation<Integer, Integer> increment = new Continuation<Integer, Integer>() {
+      public Integer then(Task<Integer> task) {
+        return task.getResult() + 1;
+      }
+    };
+    Continuation<Integer, Task<Integer>> incrementTask = new Continuation<Integer, Task<Integer>>() {
+      public Task<Integer> then(Task<Integer> task) {
+        return Task.forResult(task.getResult() + 1);
+      }
+    };
+
+    TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    Task<Integer> task = tcs.getTask();
+    for (int i = 0; i < 5; i++) {
+      task = task.onSuccess(increment, countingExecutor)
+          .onSuccessTask(incrementTask, countingExecutor);
+    }
+    tcs.setResult(0);
+    assertEquals(10, task.getResult().intValue());
+    assertEquals(10, dispatches.get());
+
+    dispatches.set(0);
+    task = Task.forError(new IllegalStateException());
+    for (int i = 0; i < 5; i++) {
+      task = task.onSuccess(increment, countingExecutor)
+          .onSuccessTask(incrementTask, countingExecutor);
+    }
+    assertTrue(task.getError() instanceof IllegalStateException);
+    assertEquals(0, dispatches.get());
+  }
+
   @Test
   public void testOnSuccessTask() {
     Continuation<Integer, Task<Integer>> continuation = new Continuation<Integer, Task<Integer>>() {
@@ -1058,6 +2151,109 @@ public class TaskTest {
     });
   }
 
+  @Test
+  public void testContinueWhileLongSynchronousLoop() {
+    final int iterations = 1000000;
+    final AtomicInteger count = new AtomicInteger(0);
+    Task<Void> loop = Task.forResult(null).continueWhile(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return count.get() < iterations;
+      }
+    }, new Continuation<Void, Task<Void>>() {
+      public Task<Void> then(Task<Void> task) throws Exception {
+        count.incrementAndGet();
+        return Task.forResult(null);
+      }
+    });
+
+    assertTrue(loop.isCompleted());
+    assertFalse(loop.isFaulted());
+    assertEquals(iterations, count.get());
+  }
+
+  @Test
+  public void testContinueWhileStopsOnFailedIteration() {
+    final AtomicInteger count = new AtomicInteger(0);
+    final Exception error = new RuntimeException("This task failed.");
+    Task<Void> loop = Task.forResult(null).continueWhile(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return true;
+      }
+    }, new Continuation<Void, Task<Void>>() {
+      public Task<Void> then(Task<Void> task) throws Exception {
+        if (count.incrementAndGet() == 3) {
+          return Task.forError(error);
+        }
+        return Task.callInBackground(new Callable<Void>() {
+          public Void call() throws Exception {
+            return null;
+          }
+        });
+      }
+    });
+
+    try {
+      loop.waitForCompletion();
+    } catch (InterruptedException e) {
+      fail();
+    }
+    assertSame(error, loop.getError());
+    assertEquals(3, count.get());
+  }
+
+  @Test
+  public void testContinueWhileWithValue() {
+    // Fetches pages of up to 3 items out of 10, threading the items fetched so far.
+    final int total = 10;
+    Task<List<Integer>> pages = Task.<List<Integer>>forResult(new ArrayList<Integer>())
+        .continueWhile(new Continuation<List<Integer>, Boolean>() {
+          public Boolean then(Task<List<Integer>> task) throws Exception {
+            return task.getResult().size() < total;
+          }
+        }, new Continuation<List<Integer>, Task<List<Integer>>>() {
+          public Task<List<Integer>> then(Task<List<Integer>> task) throws Exception {
+            final List<Integer> items = task.getResult();
+            return Task.callInBackground(new Callable<List<Integer>>() {
+              public List<Integer> call() throws Exception {
+                List<Integer> next = new ArrayList<>(items);
+                for (int i = items.size(); i < Math.min(items.size() + 3, total); i++) {
+                  next.add(i);
+                }
+                return next;
+              }
+            });
+          }
+        });
+
+    try {
+      pages.waitForCompletion();
+    } catch (InterruptedException e) {
+      fail();
+    }
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), pages.getResult());
+  }
+
+  @Test
+  public void testContinueWhileWithValueFailedAntecedent() {
+    final Exception error = new RuntimeException("This task failed.");
+    final AtomicInteger count = new AtomicInteger(0);
+    Task<Integer> loop = Task.<Integer>forError(error).continueWhile(
+        new Continuation<Integer, Boolean>() {
+          public Boolean then(Task<Integer> task) throws Exception {
+            count.incrementAndGet();
+            return false;
+          }
+        }, new Continuation<Integer, Task<Integer>>() {
+          public Task<Integer> then(Task<Integer> task) throws Exception {
+            count.incrementAndGet();
+            return task;
+          }
+        });
+
+    assertSame(error, loop.getError());
+    assertEquals(0, count.get());
+  }
+
   @Test
   public void testCallWithBadExecutor() {
     final RuntimeException exception = new RuntimeException("BAD EXECUTORS");
@@ -1192,6 +2388,54 @@ public class TaskTest {
     assertFalse(tcs.trySetCancelled());
   }
 
+  @Test
+  public void testTrySetConcurrently() throws Exception {
+    final TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+    final AtomicInteger winners = new AtomicInteger();
+    final AtomicInteger winningValue = new AtomicInteger(-1);
+    final Object start = new Object();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      final int value = i;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (start) {
+            // Wait for every thread to be ready.
+          }
+          boolean success = value % 2 == 0
+              ? tcs.trySetResult(value)
+              : tcs.trySetError(new RuntimeException(Integer.toString(value)));
+          if (success) {
+            winners.incrementAndGet();
+            winningValue.set(value);
+          }
+        }
+      });
+      threads.add(thread);
+    }
+    synchronized (start) {
+      for (Thread thread : threads) {
+        thread.start();
+      }
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Task<Integer> task = tcs.getTask();
+    assertEquals(1, winners.get());
+    assertTrue(task.isCompleted());
+    if (winningValue.get() % 2 == 0) {
+      assertFalse(task.isFaulted());
+      assertEquals(winningValue.get(), task.getResult().intValue());
+    } else {
+      assertTrue(task.isFaulted());
+      assertNull(task.getResult());
+      assertEquals(Integer.toString(winningValue.get()), task.getError().getMessage());
+    }
+  }
+
   @Test
   public void testSetResultOnCompletedTask() {
     TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package bolts;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+  private TimingWheel timer;
+
+  @After
+  public void tearDown() {
+    if (timer != null) {
+      timer.stop();
+    }
+  }
+
+  @Test
+  public void testTimeoutRunsAfterDelay() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long start = System.nanoTime();
+    final long[] elapsed = new long[1];
+
+    // Longer than a turn of the wheel.
+    TimingWheel.Timeout timeout = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        elapsed[0] = System.nanoTime() - start;
+        latch.countDown();
+      }
+    }, 50, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertTrue(timeout.isExpired());
+    assertFalse(timeout.cancel());
+    assertEquals(0, timer.pendingTimeouts());
+  }
+
+  @Test
+  public void testCancelledTimeoutDoesNotRun() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    final AtomicInteger runs = new AtomicInteger();
+    List<TimingWheel.Timeout> timeouts = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      timeouts.add(timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          runs.incrementAndGet();
+        }
+      }, 20, TimeUnit.MILLISECONDS));
+    }
+    for (TimingWheel.Timeout timeout : timeouts) {
+      assertTrue(timeout.cancel());
+      assertTrue(timeout.isCancelled());
+    }
+    assertEquals(0, timer.pendingTimeouts());
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    }, 40, TimeUnit.MILLISECONDS);
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void testTimeoutsRunInDeadlineOrder() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 16);
+    final List<Integer> order = new ArrayList<>();
+    final CountDownLatch latch = new CountDownLatch(3);
+    int[] delays = {60, 20, 40};
+    for (final int delay : delays) {
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          order.add(delay);
+          latch.countDown();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(20, order.get(0).intValue());
+    assertEquals(40, order.get(1).intValue());
+    assertEquals(60, order.get(2).intValue());
+  }
+
+  @Test
+  public void testTimeoutAfterIdle() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    for (int i = 0; i < 3; i++) {
+      final CountDownLatch latch = new CountDownLatch(1);
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          latch.countDown();
+        }
+      }, 5, TimeUnit.MILLISECONDS);
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+      // Let the wheel stop ticking before the next timeout.
+      Thread.sleep(30);
+    }
+  }
+
+  @Test
+  public void testFarAwayTimeoutDoesNotRun() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    timer.schedule(task, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    timer.schedule(task, Long.MAX_VALUE / 2, TimeUnit.MILLISECONDS);
+    timer.schedule(task, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    }, 20, TimeUnit.MILLISECONDS);
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    Thread.sleep(20);
+    assertEquals(0, runs.get());
+    assertEquals(3, timer.pendingTimeouts());
+  }
+
+  @Test
+  public void testFailingTimeoutDoesNotStopTheWheel() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    final CountDownLatch latch = new CountDownLatch(1);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        throw new RuntimeException("This timeout failed.");
+      }
+    }, 1, TimeUnit.MILLISECONDS);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    }, 10, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testErrorDoesNotStopTheWheel() throws Exception {
+    final Error error = new AssertionError("This timeout failed.");
+    final Capture<Throwable> reported = new Capture<>();
+    Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread thread, Throwable e) {
+        reported.set(e);
+      }
+    });
+    try {
+      timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+      final CountDownLatch latch = new CountDownLatch(1);
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          throw error;
+        }
+      }, 1, TimeUnit.MILLISECONDS);
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          latch.countDown();
+        }
+      }, 10, TimeUnit.MILLISECONDS);
+
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+      assertSame(error, reported.get());
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+    }
+  }
+
+  @Test
+  public void testStoppedWheelDoesNotRun() throws Exception {
+    timer = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    final AtomicInteger runs = new AtomicInteger();
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    }, 20, TimeUnit.MILLISECONDS);
+
+    timer.stop();
+    Thread.sleep(50);
+    assertEquals(0, runs.get());
+  }
+}